@@ -9,6 +9,7 @@ import dalvik.system.BaseDexClassLoader
 import io.github.libxposed.api.XposedInterface
 import io.github.libxposed.helper.HookBuilder
 import io.github.libxposed.helper.HookBuilder.*
+import java.io.File
 import java.io.InputStream
 import java.io.OutputStream
 import java.lang.reflect.Constructor
@@ -231,6 +232,13 @@ sealed class MemberMatcherKt<Matcher>(matcher: Matcher) :
         inline set(value) {
             matcher.setDeclaringClass(value.match)
         }
+    var declaringPackage: String
+        @Deprecated(
+            "Write only", level = DeprecationLevel.HIDDEN
+        ) inline get() = wo
+        inline set(value) {
+            matcher.setDeclaringPackage(value)
+        }
     var isSynthetic: Boolean
         @Deprecated(
             "Write only", level = DeprecationLevel.HIDDEN
@@ -935,6 +943,22 @@ class HookBuilderKt(@PublishedApi internal val builder: HookBuilder) {
             builder.setCacheOutputStream(value)
         }
 
+    var classNameCacheFile: File
+        @Deprecated(
+            "Write only", level = DeprecationLevel.HIDDEN
+        ) inline get() = wo
+        inline set(value) {
+            builder.setClassNameCacheFile(value)
+        }
+
+    var notifyBatchSize: Int
+        @Deprecated(
+            "Write only", level = DeprecationLevel.HIDDEN
+        ) inline get() = wo
+        inline set(value) {
+            builder.setNotifyBatchSize(value)
+        }
+
     var cacheChecker: (Map<String, Any>) -> Boolean
         @Deprecated(
             "Write only", level = DeprecationLevel.HIDDEN
@@ -92,4 +92,6 @@ dependencies {
     compileOnly("androidx.annotation:annotation-experimental:1.3.0")
     compileOnly("androidx.annotation:annotation:1.5.0")
     compileOnly("io.github.libxposed:api:100")
+    testImplementation("io.github.libxposed:api:100")
+    testImplementation("junit:junit:4.13.2")
 }
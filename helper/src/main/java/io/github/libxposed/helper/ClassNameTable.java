@@ -0,0 +1,418 @@
+package io.github.libxposed.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// immutable sorted set of distinct class names, front coded in blocks so that it can be persisted and mapped back as is.
+// names are encoded like dex strings, one utf-8 sequence per utf-16 unit, so that unsigned byte order is String.compareTo order.
+// every block starts with a full name followed by names stored as the length shared with their predecessor and the rest
+final class ClassNameTable implements Iterable<String> {
+    private final static int magic = 0x434e5442;
+    private final static int version = 3;
+    // magic, version, source count, hash and total length of the sources, count
+    private final static int headerSize = 32;
+    private final static int countOffset = 28;
+    private final static int blockSize = 16;
+
+    @NonNull
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int dataOffset;
+    // names[start, end)
+    private final int start;
+    private final int end;
+
+    private ClassNameTable(@NonNull ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.count = buffer.getInt(countOffset);
+        this.dataOffset = headerSize + 4 * (blockCount(count) + 1);
+        this.start = start;
+        this.end = end;
+    }
+
+    private static int blockCount(int count) {
+        return (count + blockSize - 1) / blockSize;
+    }
+
+    // the table persisted for the same sources, or null if there is none or any of them has changed since
+    @Nullable
+    static ClassNameTable map(@NonNull File file, @NonNull List<File> sources) throws IOException {
+        if (!file.isFile()) return null;
+        final ByteBuffer buffer;
+        try (var in = new RandomAccessFile(file, "r")) {
+            final long size = in.length();
+            if (size < headerSize || size > Integer.MAX_VALUE) return null;
+            // the mapping stays valid after the channel is closed
+            buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        final var identity = header(sources, 0);
+        for (var i = 0; i < countOffset; ++i) {
+            if (buffer.get(i) != identity.get(i)) return null;
+        }
+        final int count = buffer.getInt(countOffset);
+        final int blocks = blockCount(Math.max(count, 0));
+        if (count < 0 || blocks > (buffer.capacity() - headerSize) / 4 - 1) return null;
+        final int dataOffset = headerSize + 4 * (blocks + 1);
+        var last = 0;
+        for (var i = 0; i <= blocks; ++i) {
+            final int offset = buffer.getInt(headerSize + 4 * i);
+            if (offset < last) return null;
+            last = offset;
+        }
+        if (last != buffer.capacity() - dataOffset) return null;
+        return new ClassNameTable(buffer, 0, count);
+    }
+
+    // write to a sibling file first, so that a concurrent start never maps a partial table
+    void write(@NonNull File file, @NonNull List<File> sources) throws IOException {
+        final var temp = new File(file.getPath() + ".tmp");
+        try (var out = new FileOutputStream(temp)) {
+            final var channel = out.getChannel();
+            final var header = header(sources, count);
+            while (header.hasRemaining()) channel.write(header);
+            final var data = buffer.duplicate();
+            data.clear();
+            data.position(headerSize);
+            while (data.hasRemaining()) channel.write(data);
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("failed to write " + file);
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer header(@NonNull List<File> sources, int count) {
+        // the base apk alone is not enough, a split can be updated on its own
+        long hash = 1;
+        long length = 0;
+        for (final var source : sources) {
+            hash = 31 * hash + source.getPath().hashCode();
+            hash = 31 * hash + source.length();
+            hash = 31 * hash + source.lastModified();
+            length += source.length();
+        }
+        final var header = ByteBuffer.allocate(headerSize);
+        header.putInt(magic);
+        header.putInt(version);
+        header.putInt(sources.size());
+        header.putLong(hash);
+        header.putLong(length);
+        header.putInt(count);
+        header.flip();
+        return header;
+    }
+
+    @NonNull
+    private static byte[] encode(@NonNull String name) {
+        var length = 0;
+        for (var i = 0; i < name.length(); ++i) {
+            final char c = name.charAt(i);
+            length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        final var bytes = new byte[length];
+        var p = 0;
+        for (var i = 0; i < name.length(); ++i) {
+            final char c = name.charAt(i);
+            if (c != 0 && c < 0x80) {
+                bytes[p++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[p++] = (byte) (0xc0 | c >> 6);
+                bytes[p++] = (byte) (0x80 | c & 0x3f);
+            } else {
+                bytes[p++] = (byte) (0xe0 | c >> 12);
+                bytes[p++] = (byte) (0x80 | c >> 6 & 0x3f);
+                bytes[p++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return bytes;
+    }
+
+    @NonNull
+    private static String decode(@NonNull byte[] bytes, int length) {
+        final var chars = new char[length];
+        var size = 0;
+        for (var p = 0; p < length; ) {
+            final int b = bytes[p++] & 0xff;
+            if (b < 0x80) {
+                chars[size++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                chars[size++] = (char) ((b & 0x1f) << 6 | bytes[p++] & 0x3f);
+            } else {
+                chars[size++] = (char) ((b & 0x0f) << 12 | (bytes[p++] & 0x3f) << 6 | bytes[p++] & 0x3f);
+            }
+        }
+        return new String(chars, 0, size);
+    }
+
+    // with prefix, a name starting with the pattern compares equal
+    private static int compare(@NonNull byte[] name, int length, @NonNull byte[] pattern, int patternLength, boolean prefix) {
+        final int common = Math.min(length, patternLength);
+        for (var i = 0; i < common; ++i) {
+            if (name[i] != pattern[i]) return (name[i] & 0xff) < (pattern[i] & 0xff) ? -1 : 1;
+        }
+        if (length < patternLength) return -1;
+        return prefix || length == patternLength ? 0 : 1;
+    }
+
+    private int readUleb(int[] position) {
+        int p = position[0], result = 0, shift = 0, b;
+        do {
+            b = buffer.get(p++) & 0xff;
+            result |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        position[0] = p;
+        return result;
+    }
+
+    private int blockOffset(int block) {
+        return dataOffset + buffer.getInt(headerSize + 4 * block);
+    }
+
+    // compare the full name heading a block without copying it
+    private int compareHead(int block, @NonNull byte[] pattern, boolean prefix) {
+        final var position = new int[]{blockOffset(block)};
+        final int length = readUleb(position);
+        final int p = position[0];
+        final int common = Math.min(length, pattern.length);
+        for (var i = 0; i < common; ++i) {
+            final byte b = buffer.get(p + i);
+            if (b != pattern[i]) return (b & 0xff) < (pattern[i] & 0xff) ? -1 : 1;
+        }
+        if (length < pattern.length) return -1;
+        return prefix || length == pattern.length ? 0 : 1;
+    }
+
+    int size() {
+        return end - start;
+    }
+
+    boolean isEmpty() {
+        return start == end;
+    }
+
+    @NonNull
+    String get(int index) {
+        final var cursor = new Cursor(start + index);
+        return decode(cursor.bytes, cursor.length);
+    }
+
+    int compare(int index, @NonNull String pattern, boolean prefix) {
+        final var cursor = new Cursor(start + index);
+        final var bytes = encode(pattern);
+        return compare(cursor.bytes, cursor.length, bytes, bytes.length, prefix);
+    }
+
+    boolean contains(@NonNull String name) {
+        final var bytes = encode(name);
+        final int index = search(bytes, false, 0);
+        if (index >= size()) return false;
+        final var cursor = new Cursor(start + index);
+        return compare(cursor.bytes, cursor.length, bytes, bytes.length, false) == 0;
+    }
+
+    // first position in [from, size) whose name is not less than the pattern
+    int lowerBound(@NonNull String pattern, int from) {
+        return search(encode(pattern), false, from);
+    }
+
+    // end of the names starting with the pattern, from its lower bound on
+    int upperBoundPrefix(@NonNull String pattern, int lowerBound) {
+        return search(encode(pattern), true, lowerBound);
+    }
+
+    @NonNull
+    ClassNameTable subSet(@NonNull String fromElement, @NonNull String toElement) {
+        final int from = lowerBound(fromElement, 0);
+        return slice(from, lowerBound(toElement, from));
+    }
+
+    // first position from which the names compare above the bound, given that a prefix of [from, size) does not:
+    // a binary search over the block heads followed by a scan of at most one block
+    private int search(@NonNull byte[] pattern, boolean prefix, int from) {
+        final int bound = prefix ? 1 : 0;
+        final int first = start + from;
+        if (first >= end) return size();
+        int block = first / blockSize;
+        int low = block + 1, high = (end - 1) / blockSize;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (compareHead(mid, pattern, prefix) < bound) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        final var cursor = new Cursor(Math.max(first, block * blockSize));
+        while (cursor.index < end && compare(cursor.bytes, cursor.length, pattern, pattern.length, prefix) < bound) cursor.next();
+        return Math.min(cursor.index, end) - start;
+    }
+
+    // names at the positions [from, to) of this table
+    @NonNull
+    ClassNameTable slice(int from, int to) {
+        return new ClassNameTable(buffer, start + from, start + to);
+    }
+
+    // union of two tables in one pass over both, without decoding a name
+    @NonNull
+    ClassNameTable merge(@NonNull ClassNameTable other) {
+        final var builder = new Builder();
+        final var a = new Cursor(start);
+        final var b = other.new Cursor(other.start);
+        while (a.index < end || b.index < other.end) {
+            final int cmp = a.index >= end ? 1 : b.index >= other.end ? -1 : compare(a.bytes, a.length, b.bytes, b.length, false);
+            if (cmp <= 0) {
+                builder.add(a.bytes, a.length);
+                a.next();
+                if (cmp == 0) b.next();
+            } else {
+                builder.add(b.bytes, b.length);
+                b.next();
+            }
+        }
+        return builder.build();
+    }
+
+    @NonNull
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private final Cursor cursor = new Cursor(start);
+
+            @Override
+            public boolean hasNext() {
+                return cursor.index < end;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                final var name = decode(cursor.bytes, cursor.length);
+                cursor.next();
+                return name;
+            }
+        };
+    }
+
+    // sequential decoder of the names from a position on, reusing one byte array
+    private final class Cursor {
+        @NonNull
+        private final int[] position = new int[1];
+        @NonNull
+        byte[] bytes = new byte[64];
+        int length = 0;
+        int index;
+
+        Cursor(int index) {
+            this.index = index - index % blockSize;
+            if (index >= count) {
+                this.index = index;
+                return;
+            }
+            position[0] = blockOffset(this.index / blockSize);
+            read(0);
+            while (this.index < index) next();
+        }
+
+        void next() {
+            if (++index >= count) return;
+            read(index % blockSize == 0 ? 0 : readUleb(position));
+        }
+
+        private void read(int shared) {
+            final int rest = readUleb(position);
+            length = shared + rest;
+            if (length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(length, 2 * bytes.length));
+            for (var i = 0; i < rest; ++i) bytes[shared + i] = buffer.get(position[0] + i);
+            position[0] += rest;
+        }
+    }
+
+    // collects names given in sorted order, repeated ones are skipped
+    static final class Builder {
+        @NonNull
+        private byte[] data = new byte[4096];
+        private int size = 0;
+        @NonNull
+        private final IntList blockOffsets = new IntList();
+        private int count = 0;
+        @NonNull
+        private byte[] last = new byte[64];
+        private int lastLength = 0;
+
+        void add(@NonNull String name) {
+            final var bytes = encode(name);
+            add(bytes, bytes.length);
+        }
+
+        private void add(@NonNull byte[] bytes, int length) {
+            if (count > 0) {
+                final int cmp = compare(bytes, length, last, lastLength, false);
+                if (cmp == 0) return;
+                if (cmp < 0) throw new IllegalArgumentException("class names are not sorted");
+            }
+            if (count % blockSize == 0) {
+                blockOffsets.add(size);
+                writeUleb(length);
+                write(bytes, 0, length);
+            } else {
+                var shared = 0;
+                while (shared < length && shared < lastLength && bytes[shared] == last[shared]) ++shared;
+                writeUleb(shared);
+                writeUleb(length - shared);
+                write(bytes, shared, length - shared);
+            }
+            if (length > last.length) last = Arrays.copyOf(last, Math.max(length, 2 * last.length));
+            System.arraycopy(bytes, 0, last, 0, length);
+            lastLength = length;
+            ++count;
+        }
+
+        private void writeUleb(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((byte) (value & 0x7f | 0x80));
+                value >>>= 7;
+            }
+            write((byte) value);
+        }
+
+        private void write(byte b) {
+            if (size == data.length) data = Arrays.copyOf(data, 2 * data.length);
+            data[size++] = b;
+        }
+
+        private void write(@NonNull byte[] bytes, int from, int length) {
+            if (size + length > data.length) data = Arrays.copyOf(data, Math.max(size + length, 2 * data.length));
+            System.arraycopy(bytes, from, data, size, length);
+            size += length;
+        }
+
+        @NonNull
+        ClassNameTable build() {
+            final int blocks = blockOffsets.size();
+            final var buffer = ByteBuffer.allocate(headerSize + 4 * (blocks + 1) + size);
+            buffer.putInt(countOffset, count);
+            buffer.position(headerSize);
+            for (var i = 0; i < blocks; ++i) buffer.putInt(blockOffsets.get(i));
+            buffer.putInt(size);
+            buffer.put(data, 0, size);
+            buffer.clear();
+            return new ClassNameTable(buffer, 0, count);
+        }
+    }
+}
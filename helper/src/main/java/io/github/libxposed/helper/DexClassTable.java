@@ -0,0 +1,152 @@
+package io.github.libxposed.helper;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import io.github.libxposed.api.utils.DexParser;
+
+// raw reader of the string, type and class_def tables of a dex, without parsing the rest of it
+final class DexClassTable {
+    private static final int STRING_IDS_SIZE_OFFSET = 0x38;
+    private static final int STRING_IDS_OFF_OFFSET = 0x3c;
+    private static final int TYPE_IDS_SIZE_OFFSET = 0x40;
+    private static final int TYPE_IDS_OFF_OFFSET = 0x44;
+    private static final int CLASS_DEFS_SIZE_OFFSET = 0x60;
+    private static final int CLASS_DEFS_OFF_OFFSET = 0x64;
+    private static final int CLASS_DEF_SIZE = 0x20;
+
+    @NonNull
+    private final ByteBuffer buffer;
+    private final int stringIdsSize;
+    private final int stringIdsOff;
+    private final int typeIdsSize;
+    private final int typeIdsOff;
+    private final int classDefsOff;
+    // type id -> index of its class_def, or -1 if not defined in this dex
+    @NonNull
+    private final int[] classDefs;
+
+    DexClassTable(@NonNull ByteBuffer buffer) {
+        this.buffer = buffer;
+        stringIdsSize = readInt(STRING_IDS_SIZE_OFFSET);
+        stringIdsOff = readInt(STRING_IDS_OFF_OFFSET);
+        typeIdsSize = readInt(TYPE_IDS_SIZE_OFFSET);
+        typeIdsOff = readInt(TYPE_IDS_OFF_OFFSET);
+        final int classDefsSize = readInt(CLASS_DEFS_SIZE_OFFSET);
+        classDefsOff = readInt(CLASS_DEFS_OFF_OFFSET);
+        classDefs = new int[typeIdsSize];
+        Arrays.fill(classDefs, -1);
+        for (var i = 0; i < classDefsSize; ++i) {
+            final int type = readInt(classDefsOff + i * CLASS_DEF_SIZE);
+            if (type >= 0 && type < typeIdsSize) classDefs[type] = i;
+        }
+    }
+
+    private int readInt(int offset) {
+        return (buffer.get(offset) & 0xff) | (buffer.get(offset + 1) & 0xff) << 8 | (buffer.get(offset + 2) & 0xff) << 16 | (buffer.get(offset + 3) & 0xff) << 24;
+    }
+
+    private int readShort(int offset) {
+        return (buffer.get(offset) & 0xff) | (buffer.get(offset + 1) & 0xff) << 8;
+    }
+
+    int getStringCount() {
+        return stringIdsSize;
+    }
+
+    // compare a string with the pattern in utf-16 order, decoding its mutf-8 data in place;
+    // with prefix, a string starting with the pattern compares equal
+    int compareString(int string, @NonNull String pattern, boolean prefix) {
+        int p = readInt(stringIdsOff + 4 * string);
+        // skip the uleb128 utf-16 size
+        while ((buffer.get(p++) & 0x80) != 0) ;
+        for (var i = 0; i < pattern.length(); ++i) {
+            final int b = buffer.get(p++) & 0xff;
+            // mutf-8 has no other zero byte than the terminator
+            if (b == 0) return -1;
+            final char c;
+            if (b < 0x80) {
+                c = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                c = (char) ((b & 0x1f) << 6 | buffer.get(p++) & 0x3f);
+            } else {
+                c = (char) ((b & 0x0f) << 12 | (buffer.get(p++) & 0x3f) << 6 | buffer.get(p++) & 0x3f);
+            }
+            final char expected = pattern.charAt(i);
+            if (c != expected) return c < expected ? -1 : 1;
+        }
+        return prefix || buffer.get(p) == 0 ? 0 : 1;
+    }
+
+    // first string id in [from, size) not less than the pattern
+    int lowerBoundString(@NonNull String pattern, int from) {
+        int low = from, high = stringIdsSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareString(mid, pattern, false) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // end of the strings starting with the pattern from its lower bound on
+    int upperBoundPrefix(@NonNull String pattern, int lowerBound) {
+        int low = lowerBound, high = stringIdsSize;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareString(mid, pattern, true) == 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // string ids are sorted by their utf-16 contents, which is also the order of String.compareTo
+    int findString(@NonNull String string) {
+        final int id = lowerBoundString(string, 0);
+        return id < stringIdsSize && compareString(id, string, false) == 0 ? id : DexParser.NO_INDEX;
+    }
+
+    // type ids are sorted by their descriptor string ids
+    int findType(@NonNull String descriptor) {
+        final int descriptorId = findString(descriptor);
+        if (descriptorId == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        int low = 0, high = typeIdsSize - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = Integer.compare(readInt(typeIdsOff + 4 * mid), descriptorId);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
+        }
+        return DexParser.NO_INDEX;
+    }
+
+    boolean isDefined(int type) {
+        return type >= 0 && type < typeIdsSize && classDefs[type] >= 0;
+    }
+
+    // class_def access flags of a class defined in this dex, or -1
+    int getClassAccessFlags(int type) {
+        if (!isDefined(type)) return -1;
+        return readInt(classDefsOff + classDefs[type] * CLASS_DEF_SIZE + 4);
+    }
+
+    int getSuperClass(int type) {
+        if (!isDefined(type)) return DexParser.NO_INDEX;
+        return readInt(classDefsOff + classDefs[type] * CLASS_DEF_SIZE + 8);
+    }
+
+    @NonNull
+    int[] getInterfaces(int type) {
+        if (!isDefined(type)) return new int[0];
+        final int offset = readInt(classDefsOff + classDefs[type] * CLASS_DEF_SIZE + 12);
+        if (offset == 0) return new int[0];
+        final var interfaces = new int[readInt(offset)];
+        for (var i = 0; i < interfaces.length; ++i) {
+            interfaces[i] = readShort(offset + 4 + 2 * i);
+        }
+        return interfaces;
+    }
+}
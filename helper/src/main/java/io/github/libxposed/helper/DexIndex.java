@@ -0,0 +1,523 @@
+package io.github.libxposed.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import io.github.libxposed.api.utils.DexParser;
+
+// per dex lookup tables between reflect objects and dex ids
+final class DexIndex implements Closeable {
+    static final int ACC_CONSTRUCTOR = 0x10000;
+    private static final Map<Class<?>, Character> primitiveDescriptorMap = Map.of(int.class, 'I', boolean.class, 'Z', float.class, 'F', long.class, 'J', short.class, 'S', byte.class, 'B', double.class, 'D', char.class, 'C', void.class, 'V');
+
+    final int dexId;
+    @NonNull
+    final DexParser parser;
+    @NonNull
+    private final DexParser.StringId[] stringIds;
+    @NonNull
+    private final DexParser.TypeId[] typeIds;
+    @NonNull
+    private final DexParser.FieldId[] fieldIds;
+    @NonNull
+    private final DexParser.MethodId[] methodIds;
+    @NonNull
+    final DexClassTable classTable;
+    @NonNull
+    private int[] methodAccessFlags = new int[0];
+    @NonNull
+    private int[] methodsWithBody = new int[0];
+    // string id -> sorted ids of the methods referring it, in compressed rows
+    @NonNull
+    private int[] stringMethodOffsets = new int[1];
+    @NonNull
+    private int[] stringMethods = new int[0];
+    // caller -> sorted callees and callee -> sorted callers, in compressed rows
+    @NonNull
+    private int[] calleeOffsets = new int[1];
+    @NonNull
+    private int[] callees = new int[0];
+    @NonNull
+    private int[] callerOffsets = new int[1];
+    @NonNull
+    private int[] callers = new int[0];
+    // method -> sorted fields read or written and field -> sorted readers or writers, in compressed rows
+    @NonNull
+    private int[] readFieldOffsets = new int[1];
+    @NonNull
+    private int[] readFields = new int[0];
+    @NonNull
+    private int[] readerOffsets = new int[1];
+    @NonNull
+    private int[] readers = new int[0];
+    @NonNull
+    private int[] writtenFieldOffsets = new int[1];
+    @NonNull
+    private int[] writtenFields = new int[0];
+    @NonNull
+    private int[] writerOffsets = new int[1];
+    @NonNull
+    private int[] writers = new int[0];
+    // defined class -> access flags (-1 if not defined here) and superclass, and type -> sorted direct subclasses or implementers
+    @NonNull
+    private int[] classAccessFlags = new int[0];
+    @NonNull
+    private int[] superClasses = new int[0];
+    @NonNull
+    private int[] subclassOffsets = new int[1];
+    @NonNull
+    private int[] subclasses = new int[0];
+    @NonNull
+    private int[] implementerOffsets = new int[1];
+    @NonNull
+    private int[] implementers = new int[0];
+
+    DexIndex(int dexId, @NonNull DexParser parser, @NonNull ByteBuffer buffer) {
+        this.dexId = dexId;
+        this.parser = parser;
+        stringIds = parser.getStringId();
+        typeIds = parser.getTypeId();
+        fieldIds = parser.getFieldId();
+        methodIds = parser.getMethodId();
+        classTable = new DexClassTable(buffer);
+    }
+
+    @NonNull
+    static String descriptorOf(@NonNull Class<?> clazz) {
+        if (clazz.isPrimitive()) {
+            //noinspection ConstantConditions
+            return String.valueOf((char) primitiveDescriptorMap.get(clazz));
+        } else if (clazz.isArray()) {
+            return clazz.getName().replace('.', '/');
+        } else {
+            return "L" + clazz.getName().replace('.', '/') + ";";
+        }
+    }
+
+    // strings are compared on the raw string data, only matched ones are ever decoded
+    int findString(@NonNull String string) {
+        return classTable.findString(string);
+    }
+
+    int findType(@NonNull String descriptor) {
+        return classTable.findType(descriptor);
+    }
+
+    int findType(@NonNull Class<?> clazz) {
+        return findType(descriptorOf(clazz));
+    }
+
+    int findMember(@NonNull Member member) {
+        if (member instanceof Method) {
+            final var method = (Method) member;
+            return findMethod(method.getDeclaringClass(), method.getName(), method.getParameterTypes(), method.getReturnType());
+        } else if (member instanceof Constructor) {
+            final var constructor = (Constructor<?>) member;
+            return findMethod(constructor.getDeclaringClass(), "<init>", constructor.getParameterTypes(), void.class);
+        } else if (member instanceof Field) {
+            final var field = (Field) member;
+            return findField(field.getDeclaringClass(), field.getName(), field.getType());
+        }
+        return DexParser.NO_INDEX;
+    }
+
+    // method ids are sorted by (declaring class, name, prototype)
+    private int findMethod(@NonNull Class<?> declaringClass, @NonNull String name, @NonNull Class<?>[] parameterTypes, @NonNull Class<?> returnType) {
+        final int classId = findType(declaringClass);
+        if (classId == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        final int nameId = findString(name);
+        if (nameId == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        final int returnTypeId = findType(returnType);
+        if (returnTypeId == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        final var parameterTypeIds = new int[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            parameterTypeIds[i] = findType(parameterTypes[i]);
+            if (parameterTypeIds[i] == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        }
+        for (int i = lowerBoundMethod(classId); i < methodIds.length; i++) {
+            final var methodId = methodIds[i];
+            if (methodId.getDeclaringClass().getId() != classId) break;
+            if (methodId.getName().getId() != nameId) continue;
+            final var proto = methodId.getPrototype();
+            if (proto.getReturnType().getId() != returnTypeId) continue;
+            final var parameters = proto.getParameters();
+            final int length = parameters == null ? 0 : parameters.length;
+            if (length != parameterTypeIds.length) continue;
+            boolean same = true;
+            for (int j = 0; j < length && same; j++) {
+                same = parameters[j].getId() == parameterTypeIds[j];
+            }
+            if (same) return i;
+        }
+        return DexParser.NO_INDEX;
+    }
+
+    // field ids are sorted by (declaring class, name, type)
+    private int findField(@NonNull Class<?> declaringClass, @NonNull String name, @NonNull Class<?> type) {
+        final int classId = findType(declaringClass);
+        if (classId == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        final int nameId = findString(name);
+        if (nameId == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        final int typeId = findType(type);
+        if (typeId == DexParser.NO_INDEX) return DexParser.NO_INDEX;
+        int low = 0, high = fieldIds.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (fieldIds[mid].getDeclaringClass().getId() < classId) low = mid + 1;
+            else high = mid;
+        }
+        for (int i = low; i < fieldIds.length; i++) {
+            final var fieldId = fieldIds[i];
+            if (fieldId.getDeclaringClass().getId() != classId) break;
+            if (fieldId.getName().getId() == nameId && fieldId.getType().getId() == typeId) return i;
+        }
+        return DexParser.NO_INDEX;
+    }
+
+    private int lowerBoundMethod(int classId) {
+        int low = 0, high = methodIds.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (methodIds[mid].getDeclaringClass().getId() < classId) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    boolean isConstructor(int method) {
+        return "<init>".equals(methodIds[method].getName().getString());
+    }
+
+    // smali style signature that Reflector understands, e.g. Lfoo/Bar;->baz(ILjava/lang/String;)V
+    @NonNull
+    String getMethodSignature(int method) {
+        final var methodId = methodIds[method];
+        final var proto = methodId.getPrototype();
+        final var sb = new StringBuilder();
+        sb.append(methodId.getDeclaringClass().getDescriptor().getString()).append("->").append(methodId.getName().getString()).append('(');
+        final var parameters = proto.getParameters();
+        if (parameters != null) {
+            for (final var parameter : parameters) {
+                sb.append(parameter.getDescriptor().getString());
+            }
+        }
+        return sb.append(')').append(proto.getReturnType().getDescriptor().getString()).toString();
+    }
+
+    @NonNull
+    String getFieldSignature(int field) {
+        final var fieldId = fieldIds[field];
+        return fieldId.getDeclaringClass().getDescriptor().getString() + "->" + fieldId.getName().getString() + ":" + fieldId.getType().getDescriptor().getString();
+    }
+
+    // sorted ids related to an id, e.g. the callers of a method
+    interface Postings {
+        @NonNull
+        int[] get(int id);
+    }
+
+    interface BodyVisitor {
+        void visit(@NonNull MethodBody body);
+    }
+
+    interface ClassDefVisitor {
+        void visit(int clazz, int accessFlags, int superClass, @NonNull int[] interfaces);
+    }
+
+    void visitMethodBodies(@NonNull BodyVisitor visitor) {
+        visitClasses(null, visitor);
+    }
+
+    private void visitClasses(@Nullable ClassDefVisitor classVisitor, @NonNull BodyVisitor visitor) {
+        final FieldAndMethodVisitor memberVisitor = new FieldAndMethodVisitor() {
+            @Override
+            public void visit(int field, int accessFlags, @NonNull int[] annotations) {
+
+            }
+
+            @Override
+            public DexParser.MethodBodyVisitor visit(int method, int accessFlags, boolean hasBody, @NonNull int[] annotations, @NonNull int[] parameterAnnotations) {
+                if (!hasBody) return null;
+                return (ignored, flags, referredStrings, invokedMethods, accessedFields, assignedFields, opcodes) -> visitor.visit(new MethodBody(DexIndex.this, method, flags, referredStrings, invokedMethods, accessedFields, assignedFields, opcodes));
+            }
+
+            @Override
+            public boolean stop() {
+                return false;
+            }
+        };
+        parser.visitDefinedClasses(new DexParser.ClassVisitor() {
+            @Override
+            public DexParser.MemberVisitor visit(int clazz, int accessFlags, int superClass, @NonNull int[] interfaces, int sourceFile, @NonNull int[] staticFields, @NonNull int[] staticFieldsAccessFlags, @NonNull int[] instanceFields, @NonNull int[] instanceFieldsAccessFlags, @NonNull int[] directMethods, @NonNull int[] directMethodsAccessFlags, @NonNull int[] virtualMethods, @NonNull int[] virtualMethodsAccessFlags, @NonNull int[] annotations) {
+                if (classVisitor != null) classVisitor.visit(clazz, accessFlags, superClass, interfaces);
+                return memberVisitor;
+            }
+
+            @Override
+            public boolean stop() {
+                return false;
+            }
+        });
+    }
+
+    // single class visit collecting every index at once
+    void buildIndex() {
+        final var accessFlags = new int[methodIds.length];
+        Arrays.fill(accessFlags, -1);
+        final var bodies = new IntList();
+        final var stringCounts = new int[stringIds.length + 1];
+        final var refStrings = new IntList();
+        final var refMethods = new IntList();
+        final var calleeCounts = new int[methodIds.length + 1];
+        final var callerCounts = new int[methodIds.length + 1];
+        final var invokers = new IntList();
+        final var invokees = new IntList();
+        final var readFieldCounts = new int[methodIds.length + 1];
+        final var readerCounts = new int[fieldIds.length + 1];
+        final var readMethods = new IntList();
+        final var readTargets = new IntList();
+        final var writtenFieldCounts = new int[methodIds.length + 1];
+        final var writerCounts = new int[fieldIds.length + 1];
+        final var writeMethods = new IntList();
+        final var writeTargets = new IntList();
+        final var classFlags = new int[typeIds.length];
+        Arrays.fill(classFlags, -1);
+        final var supers = new int[typeIds.length];
+        Arrays.fill(supers, DexParser.NO_INDEX);
+        final var subclassCounts = new int[typeIds.length + 1];
+        final var implementerCounts = new int[typeIds.length + 1];
+        final var subTypes = new IntList();
+        final var superTypes = new IntList();
+        final var implementingTypes = new IntList();
+        final var implementedTypes = new IntList();
+        visitClasses((clazz, flags, superClass, interfaces) -> {
+            classFlags[clazz] = flags;
+            supers[clazz] = superClass;
+            if (superClass != DexParser.NO_INDEX) {
+                subTypes.add(clazz);
+                superTypes.add(superClass);
+                subclassCounts[superClass + 1]++;
+            }
+            for (final var type : interfaces) {
+                implementingTypes.add(clazz);
+                implementedTypes.add(type);
+                implementerCounts[type + 1]++;
+            }
+        }, body -> {
+            final int method = body.method;
+            accessFlags[method] = body.accessFlags;
+            bodies.add(method);
+            final var strings = body.referredStrings;
+            for (var i = 0; i < strings.length; ++i) {
+                if (i > 0 && strings[i] == strings[i - 1]) continue;
+                refStrings.add(strings[i]);
+                refMethods.add(method);
+                stringCounts[strings[i] + 1]++;
+            }
+            final var invoked = body.invokedMethods;
+            for (var i = 0; i < invoked.size(); ++i) {
+                final int callee = invoked.get(i);
+                invokers.add(method);
+                invokees.add(callee);
+                calleeCounts[method + 1]++;
+                callerCounts[callee + 1]++;
+            }
+            final var accessed = body.accessedFields;
+            for (var i = 0; i < accessed.size(); ++i) {
+                final int field = accessed.get(i);
+                readMethods.add(method);
+                readTargets.add(field);
+                readFieldCounts[method + 1]++;
+                readerCounts[field + 1]++;
+            }
+            final var assigned = body.assignedFields;
+            for (var i = 0; i < assigned.size(); ++i) {
+                final int field = assigned.get(i);
+                writeMethods.add(method);
+                writeTargets.add(field);
+                writtenFieldCounts[method + 1]++;
+                writerCounts[field + 1]++;
+            }
+        });
+        methodAccessFlags = accessFlags;
+        final var methods = bodies.toArray();
+        Arrays.sort(methods);
+        methodsWithBody = methods;
+        stringMethods = toPostings(stringCounts, refStrings, refMethods);
+        stringMethodOffsets = stringCounts;
+        callees = toPostings(calleeCounts, invokers, invokees);
+        calleeOffsets = calleeCounts;
+        callers = toPostings(callerCounts, invokees, invokers);
+        callerOffsets = callerCounts;
+        readFields = toPostings(readFieldCounts, readMethods, readTargets);
+        readFieldOffsets = readFieldCounts;
+        readers = toPostings(readerCounts, readTargets, readMethods);
+        readerOffsets = readerCounts;
+        writtenFields = toPostings(writtenFieldCounts, writeMethods, writeTargets);
+        writtenFieldOffsets = writtenFieldCounts;
+        writers = toPostings(writerCounts, writeTargets, writeMethods);
+        writerOffsets = writerCounts;
+        classAccessFlags = classFlags;
+        superClasses = supers;
+        subclasses = toPostings(subclassCounts, superTypes, subTypes);
+        subclassOffsets = subclassCounts;
+        implementers = toPostings(implementerCounts, implementedTypes, implementingTypes);
+        implementerOffsets = implementerCounts;
+    }
+
+    // counting sort (key, value) pairs into compressed rows;
+    // offsets[key + 1] holds the row sizes on input and the row offsets are left in offsets
+    @NonNull
+    private static int[] toPostings(@NonNull int[] offsets, @NonNull IntList keys, @NonNull IntList values) {
+        for (var i = 1; i < offsets.length; ++i) {
+            offsets[i] += offsets[i - 1];
+        }
+        final var cursor = offsets.clone();
+        final var postings = new int[values.size()];
+        for (var i = 0; i < keys.size(); ++i) {
+            postings[cursor[keys.get(i)]++] = values.get(i);
+        }
+        for (var i = 0; i + 1 < offsets.length; ++i) {
+            Arrays.sort(postings, offsets[i], offsets[i + 1]);
+        }
+        return postings;
+    }
+
+    // access flags of a method defined with a body in this dex, or -1
+    int getMethodAccessFlags(int method) {
+        return methodAccessFlags[method];
+    }
+
+    @NonNull
+    int[] getMethodsWithBody() {
+        return methodsWithBody;
+    }
+
+    // sorted methods referring any string in [fromString, toString)
+    @NonNull
+    int[] getMethodsReferringStrings(int fromString, int toString) {
+        if (fromString >= toString) return new int[0];
+        final int from = stringMethodOffsets[fromString];
+        final int to = stringMethodOffsets[toString];
+        final var res = Arrays.copyOfRange(stringMethods, from, to);
+        if (toString - fromString == 1) return res;
+        Arrays.sort(res);
+        return PostingSet.distinct(res);
+    }
+
+    // sorted methods invoked by the method
+    @NonNull
+    int[] getCallees(int method) {
+        if (method < 0 || method >= methodIds.length) return new int[0];
+        return Arrays.copyOfRange(callees, calleeOffsets[method], calleeOffsets[method + 1]);
+    }
+
+    // sorted methods invoking the method
+    @NonNull
+    int[] getCallers(int method) {
+        if (method < 0 || method >= methodIds.length) return new int[0];
+        return Arrays.copyOfRange(callers, callerOffsets[method], callerOffsets[method + 1]);
+    }
+
+    // sorted fields read by the method
+    @NonNull
+    int[] getReadFields(int method) {
+        if (method < 0 || method >= methodIds.length) return new int[0];
+        return Arrays.copyOfRange(readFields, readFieldOffsets[method], readFieldOffsets[method + 1]);
+    }
+
+    // sorted methods reading the field
+    @NonNull
+    int[] getReaders(int field) {
+        if (field < 0 || field >= fieldIds.length) return new int[0];
+        return Arrays.copyOfRange(readers, readerOffsets[field], readerOffsets[field + 1]);
+    }
+
+    // sorted fields written by the method
+    @NonNull
+    int[] getWrittenFields(int method) {
+        if (method < 0 || method >= methodIds.length) return new int[0];
+        return Arrays.copyOfRange(writtenFields, writtenFieldOffsets[method], writtenFieldOffsets[method + 1]);
+    }
+
+    // sorted methods writing the field
+    @NonNull
+    int[] getWriters(int field) {
+        if (field < 0 || field >= fieldIds.length) return new int[0];
+        return Arrays.copyOfRange(writers, writerOffsets[field], writerOffsets[field + 1]);
+    }
+
+    // sorted methods referring any string in the [start, end) ranges
+    @NonNull
+    int[] getMethodsReferringStrings(@NonNull int[] ranges) {
+        if (ranges.length == 2) return getMethodsReferringStrings(ranges[0], ranges[1]);
+        // merge overlapping ranges first so no posting is copied twice
+        final var sorted = new long[ranges.length / 2];
+        for (var i = 0; i < sorted.length; ++i) {
+            sorted[i] = ((long) ranges[2 * i] << 32) | ranges[2 * i + 1];
+        }
+        Arrays.sort(sorted);
+        var size = 0;
+        final var merged = new int[ranges.length];
+        for (final var range : sorted) {
+            final int start = (int) (range >>> 32), end = (int) range;
+            if (size > 0 && start <= merged[size - 1]) {
+                merged[size - 1] = Math.max(merged[size - 1], end);
+            } else {
+                merged[size++] = start;
+                merged[size++] = end;
+            }
+        }
+        var total = 0;
+        for (var i = 0; i < size; i += 2) {
+            total += stringMethodOffsets[merged[i + 1]] - stringMethodOffsets[merged[i]];
+        }
+        final var res = new int[total];
+        var p = 0;
+        for (var i = 0; i < size; i += 2) {
+            final int from = stringMethodOffsets[merged[i]], to = stringMethodOffsets[merged[i + 1]];
+            System.arraycopy(stringMethods, from, res, p, to - from);
+            p += to - from;
+        }
+        Arrays.sort(res);
+        return PostingSet.distinct(res);
+    }
+
+    // access flags of a class defined in this dex, or -1
+    int getClassAccessFlags(int type) {
+        return type < 0 || type >= classAccessFlags.length ? -1 : classAccessFlags[type];
+    }
+
+    int getSuperClass(int type) {
+        return type < 0 || type >= superClasses.length ? DexParser.NO_INDEX : superClasses[type];
+    }
+
+    // sorted classes defined in this dex directly extending the type
+    @NonNull
+    int[] getSubclasses(int type) {
+        if (type < 0 || type >= typeIds.length) return new int[0];
+        return Arrays.copyOfRange(subclasses, subclassOffsets[type], subclassOffsets[type + 1]);
+    }
+
+    // sorted classes defined in this dex directly implementing the type
+    @NonNull
+    int[] getImplementers(int type) {
+        if (type < 0 || type >= typeIds.length) return new int[0];
+        return Arrays.copyOfRange(implementers, implementerOffsets[type], implementerOffsets[type + 1]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+}
@@ -0,0 +1,182 @@
+package io.github.libxposed.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+// loads classesN.dex of an apk, mapping stored entries in place and inflating the others into direct buffers
+final class DexLoader implements Closeable {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int STORED = 0;
+
+    @NonNull
+    private final String sourcePath;
+    @NonNull
+    private final RandomAccessFile file;
+    @NonNull
+    private final FileChannel channel;
+    @Nullable
+    private ZipFile zipFile = null;
+    @NonNull
+    private final List<Entry> entries = new ArrayList<>();
+
+    DexLoader(@NonNull String sourcePath) throws IOException {
+        this.sourcePath = sourcePath;
+        file = new RandomAccessFile(sourcePath, "r");
+        channel = file.getChannel();
+        try {
+            readEntries();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    @NonNull
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    private void readEntries() throws IOException {
+        final long fileSize = channel.size();
+        final int tailSize = (int) Math.min(fileSize, EOCD_SIZE + 0xffff);
+        final var tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(tail, fileSize - tailSize);
+        int eocd = -1;
+        for (var i = tailSize - EOCD_SIZE; i >= 0; --i) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) throw new IOException("not a zip file: " + sourcePath);
+        final long centralSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        final long centralOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (centralOffset + centralSize > fileSize) throw new IOException("zip64 or broken zip: " + sourcePath);
+
+        final var central = channel.map(FileChannel.MapMode.READ_ONLY, centralOffset, centralSize).order(ByteOrder.LITTLE_ENDIAN);
+        final var found = new HashMap<String, Entry>();
+        var p = 0;
+        while (p + CENTRAL_HEADER_SIZE <= centralSize && central.getInt(p) == CENTRAL_SIGNATURE) {
+            final int method = central.getShort(p + 10) & 0xffff;
+            final long size = central.getInt(p + 24) & 0xffffffffL;
+            final int nameLength = central.getShort(p + 28) & 0xffff;
+            final int extraLength = central.getShort(p + 30) & 0xffff;
+            final int commentLength = central.getShort(p + 32) & 0xffff;
+            final long localOffset = central.getInt(p + 42) & 0xffffffffL;
+            if (isDexName(central, p + CENTRAL_HEADER_SIZE, nameLength)) {
+                final var name = new byte[nameLength];
+                central.position(p + CENTRAL_HEADER_SIZE);
+                central.get(name);
+                final var nameString = new String(name, StandardCharsets.UTF_8);
+                found.put(nameString, new Entry(nameString, method, size, localOffset));
+            }
+            p += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        for (var i = 1; ; ++i) {
+            final var entry = found.get("classes" + (i == 1 ? "" : i) + ".dex");
+            if (entry == null) break;
+            entry.dexId = i - 1;
+            entries.add(entry);
+        }
+    }
+
+    private static boolean isDexName(@NonNull ByteBuffer central, int offset, int length) {
+        final var prefix = "classes";
+        final var suffix = ".dex";
+        if (length < prefix.length() + suffix.length()) return false;
+        for (var i = 0; i < prefix.length(); ++i) {
+            if (central.get(offset + i) != prefix.charAt(i)) return false;
+        }
+        for (var i = 0; i < suffix.length(); ++i) {
+            if (central.get(offset + length - suffix.length() + i) != suffix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("unexpected end of " + sourcePath);
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    @NonNull
+    ByteBuffer load(@NonNull Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE) throw new IOException("dex too large: " + entry.name);
+        if (entry.isStored()) {
+            final var local = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(local, entry.localOffset);
+            if (local.getInt(0) != LOCAL_SIGNATURE) throw new IOException("bad local header: " + entry.name);
+            final long dataOffset = entry.localOffset + LOCAL_HEADER_SIZE + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+            return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.size);
+        }
+        // the buffer is freed with its last reference, so drop the parser and the buffer as soon as the dex is done
+        final var buf = ByteBuffer.allocateDirect((int) entry.size);
+        final ZipFile zipFile;
+        synchronized (this) {
+            if (this.zipFile == null) this.zipFile = new ZipFile(sourcePath);
+            zipFile = this.zipFile;
+        }
+        final var zipEntry = zipFile.getEntry(entry.name);
+        if (zipEntry == null) throw new IOException("missing " + entry.name);
+        try (var in = Channels.newChannel(zipFile.getInputStream(zipEntry))) {
+            while (buf.hasRemaining()) {
+                if (in.read(buf) < 0) throw new IOException("read dex failed");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            file.close();
+        } finally {
+            synchronized (this) {
+                if (zipFile != null) zipFile.close();
+            }
+        }
+    }
+
+    static final class Entry {
+        @NonNull
+        final String name;
+        final int method;
+        final long size;
+        final long localOffset;
+        int dexId = -1;
+
+        private Entry(@NonNull String name, int method, long size, long localOffset) {
+            this.name = name;
+            this.method = method;
+            this.size = size;
+            this.localOffset = localOffset;
+        }
+
+        // stored entries are mapped in place, the others have to be inflated as a whole
+        boolean isStored() {
+            return method == STORED;
+        }
+    }
+}
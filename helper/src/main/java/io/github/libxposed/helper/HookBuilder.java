@@ -8,6 +8,7 @@ import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.RequiresOptIn;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.ElementType;
@@ -54,6 +55,12 @@ public interface HookBuilder {
     @NonNull
     HookBuilder setCacheOutputStream(@NonNull OutputStream cacheOutputStream);
 
+    @NonNull
+    HookBuilder setClassNameCacheFile(@NonNull File classNameCacheFile);
+
+    @NonNull
+    HookBuilder setNotifyBatchSize(int notifyBatchSize);
+
     @NonNull
     HookBuilder setExceptionHandler(@NonNull Predicate<Throwable> handler);
 
@@ -237,6 +244,17 @@ public interface HookBuilder {
         @NonNull
         Self setDeclaringClass(@NonNull ClassMatch declaringClassMatch);
 
+        /**
+         * Limits the candidates to members of the classes whose names start with {@code packageName},
+         * used when no declaring class is set.
+         * <p>
+         * Without a declaring class, the members are looked up by loading the candidate classes, so a matcher
+         * with neither a declaring class nor a declaring package loads every class of the apk. Set one of them
+         * whenever possible.
+         */
+        @NonNull
+        Self setDeclaringPackage(@NonNull String packageName);
+
         @NonNull
         Self setIsSynthetic(boolean isSynthetic);
 
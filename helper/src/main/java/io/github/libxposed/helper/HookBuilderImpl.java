@@ -10,6 +10,7 @@ import androidx.annotation.GuardedBy;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 
 import java.io.File;
 import java.io.IOException;
@@ -25,7 +26,9 @@ import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -33,25 +36,27 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.zip.ZipFile;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import dalvik.system.BaseDexClassLoader;
 import io.github.libxposed.api.XposedInterface;
@@ -62,6 +67,10 @@ import io.github.libxposed.api.utils.DexParser;
 @SuppressLint("SoonBlockedPrivateApi")
 @SuppressWarnings({"unused", "FieldCanBeLocal", "FieldMayBeFinal", "JavaReflectionMemberAccess"})
 final class HookBuilderImpl implements HookBuilder {
+    // names loaded by one task of a class matcher
+    private final static int classLoadChunk = 256;
+    private final static int defaultNotifyBatchSize = 64;
+
     @NonNull
     private final XposedInterface ctx;
     @NonNull
@@ -78,9 +87,10 @@ final class HookBuilderImpl implements HookBuilder {
     private final ConcurrentLinkedQueue<MethodMatcherImpl> rootMethodMatchers = new ConcurrentLinkedQueue<>();
     @NonNull
     private final ConcurrentLinkedQueue<ConstructorMatcherImpl> rootConstructorMatchers = new ConcurrentLinkedQueue<>();
-    @SuppressWarnings("ComparatorCombinators")
     @NonNull
-    private final SortedSet<StringMatchImpl> stringMatches = new ConcurrentSkipListSet<>((o1, o2) -> o1.matcher.pattern.compareTo(o2.matcher.pattern));
+    private final ConcurrentLinkedQueue<ExecutableMatcherImpl<?, ?, ?, ?>> dexExecutableMatchers = new ConcurrentLinkedQueue<>();
+    @NonNull
+    private final ConcurrentLinkedQueue<StringMatchImpl> stringMatches = new ConcurrentLinkedQueue<>();
     @NonNull
     private final HashMap<LazyBind, AtomicInteger> binds = new HashMap<>();
     @NonNull
@@ -111,9 +121,12 @@ final class HookBuilderImpl implements HookBuilder {
     private InputStream cacheInputStream = null;
     @Nullable
     private OutputStream cacheOutputStream = null;
+    @Nullable
+    private File classNameCacheFile = null;
     private boolean dexAnalysis = false;
     private boolean forceDexAnalysis = false;
     private boolean includeAnnotations = false;
+    private int notifyBatchSize = defaultNotifyBatchSize;
     @NonNull
     private SimpleExecutor matchExecutor = new PendingExecutor();
     @Nullable
@@ -124,6 +137,19 @@ final class HookBuilderImpl implements HookBuilder {
     private Handler callbackHandler = null;
     @Nullable
     private MatchCache matchCache = null;
+    // one per dex of the apk during dex analysis, null otherwise
+    @Nullable
+    private volatile DexSlot[] dexSlots = null;
+    // observers of executable matches that read the dex indexes once notified
+    @NonNull
+    private final ConcurrentLinkedQueue<DexObserver> dexObservers = new ConcurrentLinkedQueue<>();
+    @Nullable
+    private volatile ReadyQueue readyQueue = null;
+    @NonNull
+    private final Notifier notifier = new Notifier();
+    // matchers declared on this builder, the size of the graph the notifications run through
+    @NonNull
+    private final AtomicInteger matcherCount = new AtomicInteger(0);
 
     HookBuilderImpl(@NonNull XposedInterface ctx, @NonNull BaseDexClassLoader classLoader, @NonNull String sourcePath) {
         this.ctx = ctx;
@@ -175,6 +201,21 @@ final class HookBuilderImpl implements HookBuilder {
         return this;
     }
 
+    @NonNull
+    @Override
+    public HookBuilder setClassNameCacheFile(@NonNull File classNameCacheFile) {
+        this.classNameCacheFile = classNameCacheFile;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public HookBuilder setNotifyBatchSize(int notifyBatchSize) {
+        if (notifyBatchSize <= 0) throw new IllegalArgumentException("notifyBatchSize must be positive");
+        this.notifyBatchSize = notifyBatchSize;
+        return this;
+    }
+
     @NonNull
     @Override
     public HookBuilder setExceptionHandler(@NonNull Predicate<Throwable> handler) {
@@ -350,6 +391,9 @@ final class HookBuilderImpl implements HookBuilder {
     public @NonNull Future<?> build() {
         dexAnalysis = dexAnalysis || forceDexAnalysis;
         loadMatchCache();
+        // a graph that fits in one batch is cheaper to notify in place than through the executor;
+        // decided after the cache is loaded, so that cache hits are never notified on the calling thread
+        notifier.inline = matcherCount.get() <= notifyBatchSize;
 
         var pendingTasks = ((PendingExecutor) matchExecutor).pendingTasks;
 
@@ -378,11 +422,15 @@ final class HookBuilderImpl implements HookBuilder {
             }
         }
 
+        eliminateCommonMatchers();
+
         if (dexAnalysis) {
             analysisDex();
         } else {
             analysisClassLoader();
         }
+        reflector.clearClassTable();
+        reflector.clearMemberTables();
         return new Future<>() {
             private volatile boolean done = false;
 
@@ -454,123 +502,318 @@ final class HookBuilderImpl implements HookBuilder {
     }
 
     private void analysisDex() {
-        DexParser[] parsers;
-        try (var apk = new ZipFile(sourcePath)) {
-            var tasks = new ArrayList<Future<DexParser>>();
-            for (var i = 1; ; ++i) {
-                var dex = apk.getEntry("classes" + (i == 1 ? "" : i) + ".dex");
-                if (dex == null) break;
-                tasks.add(matchExecutor.submit(() -> {
-                    var buf = ByteBuffer.allocateDirect((int) dex.getSize());
-                    try (var in = apk.getInputStream(dex)) {
-                        if (in.read(buf.array()) != buf.capacity()) {
-                            throw new IOException("read dex failed");
-                        }
-                    }
-                    return ctx.parseDex(buf, false);
-                }));
+        // the readers of the dex indexes, known before matching starts: the root matchers that may still run
+        // and the observers of matches not published yet; each of them reads every dex once
+        var readers = 0;
+        for (final var executableMatcher : dexExecutableMatchers) {
+            if (executableMatcher.mayRun()) {
+                executableMatcher.dexReader = true;
+                ++readers;
+            }
+        }
+        for (final var classMatcher : rootClassMatchers) {
+            if (classMatcher.hasDexIndexPredicates() && classMatcher.mayRun()) {
+                classMatcher.dexReader = true;
+                ++readers;
             }
-            parsers = new DexParser[tasks.size()];
-            for (var i = 0; i < parsers.length; ++i) {
-                parsers[i] = tasks.get(i).get();
+        }
+        for (final var observer : dexObservers) {
+            if (observer.match.rootMatcher.mayRun() && observer.match.match.get() == null) {
+                observer.reader = true;
+                ++readers;
             }
+        }
+        if (readers == 0) {
+            analysisClassLoader();
+            return;
+        }
+
+        DexLoader loader = null;
+        try {
+            loader = new DexLoader(sourcePath);
         } catch (Throwable e) {
             if (exceptionHandler != null) exceptionHandler.test(e);
-            return;
         }
-        // match strings first
-        for (var d = 0; d < parsers.length; ++d) {
-            final int dexId = d;
-            final var dex = parsers[dexId];
+        final var entries = loader == null ? Collections.<DexLoader.Entry>emptyList() : loader.getEntries();
+        final var dexSlots = new DexSlot[entries.size()];
+        for (var dexId = 0; dexId < dexSlots.length; ++dexId) dexSlots[dexId] = new DexSlot(readers);
+        this.dexSlots = dexSlots;
+        // string matches in pattern order so the lower bound only moves forward
+        final var sortedStringMatches = new ArrayList<>(stringMatches);
+        //noinspection ComparatorCombinators
+        Collections.sort(sortedStringMatches, (o1, o2) -> o1.matcher.pattern.compareTo(o2.matcher.pattern));
+        // each dex goes on to string matching and indexing as soon as it is loaded, and lets its readers in
+        // once both are done; there is no barrier across the dexes, the matching starts right away
+        for (var entry : entries) {
+            final var dexLoader = loader;
+            final var slot = dexSlots[entry.dexId];
             matchExecutor.submit(() -> {
-                var stringIds = dex.getStringId();
-                int length = stringIds.length;
-                var strings = new String[length];
-                for (var i = 0; i < length; ++i) {
-                    strings[i] = stringIds[i].getString();
-                }
-                int left = 0;
-                for (var match : stringMatches) {
-                    var matcher = match.matcher;
-                    if (matcher.matchPrefix) {
-                        left = Arrays.binarySearch(strings, left, length, matcher.pattern);
-                        if (left < 0 && -left - 1 < length && strings[-left - 1].startsWith(matcher.pattern)) {
-                            left = -left - 1;
-                        }
-                    } else {
-                        left = Arrays.binarySearch(strings, left, length, matcher.pattern);
-                    }
-                    int right;
-                    if (left < 0) {
-                        left = right = -left - 1;
-                    } else {
-                        if (!matcher.matchFirst && matcher.matchPrefix) {
-                            right = Arrays.binarySearch(strings, left + 1, length, matcher.pattern + Character.MAX_VALUE);
-                            if (right < 0) {
-                                right = -right - 1;
-                            }
-                        } else {
-                            right = left + 1;
-                        }
-                    }
-                    var arr = new int[right - left];
-                    for (var i = left; i < right; ++i) {
-                        arr[i - left] = i;
+                try {
+                    // stored entries are mapped straight from the apk, deflated ones are inflated into a buffer of their own
+                    var buf = dexLoader.load(entry);
+                    var parser = ctx.parseDex(buf, false);
+                    if (parser == null) {
+                        throw new IOException("parse dex failed");
                     }
-                    AtomicHelper.updateIfNullAndGet(match.dexMatches, () -> new int[length][])[dexId] = arr;
+                    final var index = new DexIndex(entry.dexId, parser, buf);
+                    slot.index.set(index);
+                    matchExecutor.submit(() -> slot.prepare(() -> matchDexStrings(index, dexSlots.length, sortedStringMatches)));
+                    matchExecutor.submit(() -> slot.prepare(index::buildIndex));
+                } catch (Throwable e) {
+                    // a dex that failed to load counts as empty for the dex predicates
+                    slot.fail(e);
                 }
             });
         }
 
-        for (var d = 0; d < parsers.length; ++d) {
-            final int dexId = d;
-            final var dex = parsers[dexId];
-            matchExecutor.submit(() -> dex.visitDefinedClasses(new DexParser.ClassVisitor() {
-                @Override
-                public DexParser.MemberVisitor visit(int clazz, int accessFlags, int superClass, @NonNull int[] interfaces, int sourceFile, @NonNull int[] staticFields, @NonNull int[] staticFieldsAccessFlags, @NonNull int[] instanceFields, @NonNull int[] instanceFieldsAccessFlags, @NonNull int[] directMethods, @NonNull int[] directMethodsAccessFlags, @NonNull int[] virtualMethods, @NonNull int[] virtualMethodsAccessFlags, @NonNull int[] annotations) {
-                    return new FieldAndMethodVisitor() {
-                        @Override
-                        public void visit(int field, int accessFlags, @NonNull int[] annotations) {
+        // the dex readers are started along with the class loader rounds, each on a dex once it is ready
+        analysisClassLoader();
 
-                        }
+        // readers that never ran, e.g. matchers that failed before reading
+        this.dexSlots = null;
+        for (final var slot : dexSlots) slot.close();
+        if (loader != null) {
+            try {
+                loader.close();
+            } catch (IOException e) {
+                if (exceptionHandler != null) {
+                    exceptionHandler.test(e);
+                }
+            }
+        }
+    }
 
-                        @Override
-                        public DexParser.MethodBodyVisitor visit(int method, int accessFlags, boolean hasBody, @NonNull int[] annotations, @NonNull int[] parameterAnnotations) {
-                            return (ignored1, ignored2, referredStrings, invokedMethods, accessedFields, assignedFields, opcodes) -> {
-                            };
-                        }
+    // strings are compared on the raw string data, only matched ones are ever decoded
+    private void matchDexStrings(@NonNull DexIndex index, int dexCount, @NonNull List<StringMatchImpl> sortedStringMatches) {
+        final var table = index.classTable;
+        final int length = table.getStringCount();
+        int left = 0;
+        for (var match : sortedStringMatches) {
+            var matcher = match.matcher;
+            left = table.lowerBoundString(matcher.pattern, left);
+            int right = left;
+            if (left < length && table.compareString(left, matcher.pattern, matcher.matchPrefix) == 0) {
+                right = matcher.matchPrefix && !matcher.matchFirst ? table.upperBoundPrefix(matcher.pattern, left) : left + 1;
+            }
+            match.setDexRange(dexCount, index.dexId, left, right);
+        }
+    }
 
-                        @Override
-                        public boolean stop() {
-                            return false;
-                        }
-                    };
-                }
+    // a dex during dex analysis: loaded, string matched and indexed on its own, it lets its readers in as soon as
+    // it is ready and is closed right after the last of them is done with it
+    private final class DexSlot {
+        // null if the dex failed to load or once every reader is done with it
+        @NonNull
+        private final AtomicReference<DexIndex> index = new AtomicReference<>(null);
+        @NonNull
+        private final AtomicInteger readers;
+        // string matching and indexing left before the readers can start
+        @NonNull
+        private final AtomicInteger preparing = new AtomicInteger(2);
+        // readers waiting for the index, null once it is ready
+        @GuardedBy("this")
+        @Nullable
+        private ArrayList<Runnable> waiting = new ArrayList<>();
 
-                @Override
-                public boolean stop() {
-                    return false;
+        private DexSlot(int readers) {
+            this.readers = new AtomicInteger(readers);
+        }
+
+        @Nullable
+        DexIndex get() {
+            return index.get();
+        }
+
+        // run the reader once the index is ready, right away if it is already
+        void whenReady(@NonNull Runnable reader) {
+            synchronized (this) {
+                if (waiting != null) {
+                    waiting.add(reader);
+                    return;
                 }
-            }));
+            }
+            reader.run();
+        }
+
+        private void prepare(@NonNull Runnable step) {
+            try {
+                step.run();
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            if (preparing.decrementAndGet() == 0) setReady();
+        }
+
+        private void fail(@NonNull Throwable e) {
+            if (exceptionHandler != null) exceptionHandler.test(e);
+            closeDexIndex(index.getAndSet(null));
+            setReady();
+        }
+
+        private void setReady() {
+            final ArrayList<Runnable> readers;
+            synchronized (this) {
+                readers = waiting;
+                waiting = null;
+            }
+            if (readers == null) return;
+            for (final var reader : readers) matchExecutor.submit(reader);
+        }
+
+        // a reader counted in analysisDex is done with this dex
+        void release(int count) {
+            if (count > 0 && readers.addAndGet(-count) == 0) close();
+        }
+
+        void close() {
+            closeDexIndex(index.getAndSet(null));
+        }
+    }
+
+    // an observer reading the dex indexes once the executable match it observes is published
+    private static final class DexObserver {
+        @NonNull
+        private final ExecutableMatchImpl<?, ?, ?, ?, ?> match;
+        // counted among the readers of every dex in analysisDex
+        private volatile boolean reader = false;
+
+        private DexObserver(@NonNull ExecutableMatchImpl<?, ?, ?, ?, ?> match) {
+            this.match = match;
+        }
+    }
+
+    // run the task once every dex is ready, on the indexes that loaded
+    private static void whenDexesReady(@NonNull DexSlot[] dexSlots, @NonNull Consumer<DexIndex[]> task) {
+        final var remaining = new AtomicInteger(dexSlots.length);
+        final Runnable run = () -> {
+            final var dexIndexes = new DexIndex[dexSlots.length];
+            for (var dexId = 0; dexId < dexSlots.length; ++dexId) dexIndexes[dexId] = dexSlots[dexId].get();
+            task.accept(dexIndexes);
+        };
+        if (dexSlots.length == 0) run.run();
+        for (final var slot : dexSlots) {
+            slot.whenReady(() -> {
+                if (remaining.decrementAndGet() == 0) run.run();
+            });
         }
+    }
+
+    // a counted reader is done with every dex
+    private static void releaseDexSlots(@Nullable DexSlot[] dexSlots, boolean reader) {
+        if (dexSlots == null || !reader) return;
+        for (final var slot : dexSlots) slot.release(1);
+    }
+
+    private void closeDexIndex(@Nullable DexIndex index) {
+        if (index == null) return;
         try {
-            matchExecutor.joinAll();
-        } catch (Throwable e) {
+            index.close();
+        } catch (IOException e) {
             if (exceptionHandler != null) exceptionHandler.test(e);
         }
-        for (var parser : parsers) {
-            try {
-                parser.close();
-            } catch (IOException e) {
-                if (exceptionHandler != null) {
-                    exceptionHandler.test(e);
+    }
+
+    // evaluate the ready matchers on each dex as soon as it is ready, and scan the opcodes of each dex at most once
+    // with one automaton for all the opcode patterns
+    private void matchDexMethods(@NonNull List<ExecutableMatcherImpl<?, ?, ?, ?>> matchers) {
+        final var dexSlots = this.dexSlots;
+        if (dexSlots == null || dexSlots.length == 0) {
+            for (final var matcher : matchers) {
+                matcher.doMatchDex(new List<?>[0]);
+            }
+            return;
+        }
+        final var opcodeMatchers = new IntList();
+        var readers = 0;
+        for (var i = 0; i < matchers.size(); ++i) {
+            if (matchers.get(i).opcodes != null) opcodeMatchers.add(i);
+            if (matchers.get(i).dexReader) ++readers;
+        }
+        final var patterns = new byte[opcodeMatchers.size()][];
+        for (var j = 0; j < patterns.length; ++j) {
+            patterns[j] = matchers.get(opcodeMatchers.get(j)).opcodes;
+        }
+        final var automaton = patterns.length == 0 ? null : new OpcodeAutomaton(patterns);
+        final var hits = new int[matchers.size()][dexSlots.length][];
+        final var loaded = new List<?>[matchers.size()][dexSlots.length];
+        final var remaining = new AtomicInteger(dexSlots.length);
+        final int released = readers;
+        for (var id = 0; id < dexSlots.length; ++id) {
+            final var slot = dexSlots[id];
+            final int dexId = id;
+            slot.whenReady(() -> {
+                try {
+                    // a dex that failed to load has no hits
+                    final var index = slot.get();
+                    if (index == null) return;
+                    matchDexIndex(matchers, index, automaton, patterns, opcodeMatchers, hits);
+                    // resolve the hits while the index is still open, then let it go
+                    for (var i = 0; i < matchers.size(); ++i) {
+                        loaded[i][dexId] = matchers.get(i).loadDexHits(index, hits[i][dexId]);
+                    }
+                } finally {
+                    slot.release(released);
+                    if (remaining.decrementAndGet() == 0) {
+                        for (var i = 0; i < matchers.size(); ++i) {
+                            final var matcher = matchers.get(i);
+                            final var matcherHits = loaded[i];
+                            matchExecutor.submit(() -> matcher.doMatchDex(matcherHits));
+                        }
+                    }
                 }
+            });
+        }
+    }
+
+    // the per dex part of matchDexMethods, filling in the hits of each matcher on the index
+    private void matchDexIndex(@NonNull List<ExecutableMatcherImpl<?, ?, ?, ?>> matchers, @NonNull DexIndex index, @Nullable OpcodeAutomaton automaton, @NonNull byte[][] patterns, @NonNull IntList opcodeMatchers, @NonNull int[][][] hits) {
+        final int dexId = index.dexId;
+        final var candidates = new PostingSet[patterns.length];
+        for (var i = 0; i < matchers.size(); ++i) {
+            hits[i][dexId] = matchers.get(i).doMatchIndex(index);
+        }
+        if (automaton == null) return;
+        var scan = new int[0];
+        for (var j = 0; j < patterns.length; ++j) {
+            final var indexHits = hits[opcodeMatchers.get(j)][dexId];
+            candidates[j] = new PostingSet(indexHits, false);
+            scan = PostingSet.union(scan, indexHits);
+        }
+        if (scan.length == 0) return;
+        final var toScan = new PostingSet(scan, false);
+        final var bodyHits = new IntList[patterns.length];
+        final var seen = new boolean[patterns.length];
+        final var found = new IntList(patterns.length);
+        index.visitMethodBodies(body -> {
+            if (!toScan.contains(body.method)) return;
+            automaton.search(body.opcodes, seen, found);
+            for (var k = 0; k < found.size(); ++k) {
+                final var j = found.get(k);
+                if (!candidates[j].contains(body.method)) continue;
+                var list = bodyHits[j];
+                if (list == null) bodyHits[j] = list = new IntList();
+                list.add(body.method);
             }
+        });
+        for (var j = 0; j < patterns.length; ++j) {
+            final var methods = bodyHits[j] == null ? new int[0] : bodyHits[j].toArray();
+            Arrays.sort(methods);
+            hits[opcodeMatchers.get(j)][dexId] = methods;
         }
     }
 
-    private TreeSetView<String> getAllClassNamesFromClassLoader() throws NoSuchFieldException, IllegalAccessException {
-        TreeSetView<String> res = TreeSetView.ofSorted(new String[0]);
+    private int findDexId(@Nullable DexIndex index, @Nullable Object reflect) {
+        if (index == null) return DexParser.NO_INDEX;
+        if (reflect instanceof Class<?>) return index.findType((Class<?>) reflect);
+        else if (reflect instanceof Member) return index.findMember((Member) reflect);
+        return DexParser.NO_INDEX;
+    }
+
+    // the dex files of the class loader in class path order, the base apk and every split alike
+    @NonNull
+    private List<Object> getDexFilesFromClassLoader() throws NoSuchFieldException, IllegalAccessException {
+        final var dexFiles = new ArrayList<>();
         @SuppressWarnings("JavaReflectionMemberAccess") @SuppressLint("DiscouragedPrivateApi") var pathListField = BaseDexClassLoader.class.getDeclaredField("pathList");
         pathListField.setAccessible(true);
         final var pathList = pathListField.get(classLoader);
@@ -587,22 +830,69 @@ final class HookBuilderImpl implements HookBuilder {
             final var dexFileField = dexElement.getClass().getDeclaredField("dexFile");
             dexFileField.setAccessible(true);
             final var dexFile = dexFileField.get(dexElement);
-            if (dexFile == null) {
-                continue;
-            }
+            if (dexFile != null) dexFiles.add(dexFile);
+        }
+        return dexFiles;
+    }
+
+    // the files the dex files were opened from, which the persisted class names are only valid for
+    @NonNull
+    private List<File> getSourceFiles(@NonNull List<Object> dexFiles) throws NoSuchFieldException, IllegalAccessException {
+        final var sources = new ArrayList<File>(dexFiles.size());
+        for (final var dexFile : dexFiles) {
+            final var fileNameField = dexFile.getClass().getDeclaredField("mFileName");
+            fileNameField.setAccessible(true);
+            final var fileName = (String) fileNameField.get(dexFile);
+            if (fileName != null) sources.add(new File(fileName));
+        }
+        return sources;
+    }
+
+    @NonNull
+    private ClassNameTable getAllClassNamesFromClassLoader(@NonNull List<Object> dexFiles) throws NoSuchFieldException, IllegalAccessException {
+        ClassNameTable res = new ClassNameTable.Builder().build();
+        for (final var dexFile : dexFiles) {
             final var entriesField = dexFile.getClass().getDeclaredField("entries");
             entriesField.setAccessible(true);
             @SuppressWarnings("unchecked") final var entries = (Enumeration<String>) entriesField.get(dexFile);
             if (entries == null) {
                 continue;
             }
-            // entries are sorted
+            // entries follow the class_defs, which are only mostly sorted
+            final var names = Collections.list(entries);
+            Collections.sort(names);
+            final var builder = new ClassNameTable.Builder();
+            for (final var name : names) builder.add(name);
             // perform O(N) merge so that we can have a sorted result and remove duplicates
-            res = res.merge(TreeSetView.ofSorted(Collections.list(entries)));
+            res = res.isEmpty() ? builder.build() : res.merge(builder.build());
         }
         return res;
     }
 
+    // the class names persisted by a previous build of the same apk and splits, or enumerated and persisted for the next one
+    @NonNull
+    private ClassNameTable loadClassNames() throws NoSuchFieldException, IllegalAccessException {
+        final var dexFiles = getDexFilesFromClassLoader();
+        final var sources = classNameCacheFile == null ? Collections.<File>emptyList() : getSourceFiles(dexFiles);
+        if (classNameCacheFile != null) {
+            try {
+                final var cached = ClassNameTable.map(classNameCacheFile, sources);
+                if (cached != null) return cached;
+            } catch (IOException e) {
+                if (exceptionHandler != null) exceptionHandler.test(e);
+            }
+        }
+        final var classNames = getAllClassNamesFromClassLoader(dexFiles);
+        if (classNameCacheFile != null) {
+            try {
+                classNames.write(classNameCacheFile, sources);
+            } catch (IOException e) {
+                if (exceptionHandler != null) exceptionHandler.test(e);
+            }
+        }
+        return classNames;
+    }
+
     @SuppressWarnings("unchecked")
     private void loadMatchCache() {
         if (cacheInputStream == null && cacheOutputStream == null) {
@@ -791,27 +1081,72 @@ final class HookBuilderImpl implements HookBuilder {
         }
     }
 
-    private <Reflect extends Member> void memberClassLists(MemberMatcherImpl<?, ?, Reflect, ?, ?> matcher, Transformer<Class<?>, Reflect[]> transformer) {
+    private <Reflect extends Member> void memberClassLists(MemberMatcherImpl<?, ?, Reflect, ?, ?> matcher, Transformer<Class<?>, MemberSnapshot<Reflect>> transformer, ClassNameTable classNames) {
         final ArrayList<Class<?>> classList = new ArrayList<>();
         if (matcher.declaringClass != null) {
             var match = matcher.declaringClass.match.get();
-            if (match.reflect != null) classList.add(match.reflect);
-        } else if (exceptionHandler != null) {
-            exceptionHandler.test(new IllegalStateException("Match members without declaring class is not supported when not using dex analysis; set forceDexAnalysis to true to enable dex analysis."));
+            // constructors are never inherited, only their own class has them
+            final var inherits = !(matcher instanceof ConstructorMatcherImpl);
+            if (match.reflect != null) collectHierarchy(match.reflect, inherits && matcher.includeSuper, inherits && matcher.includeInterface, classList);
+        } else {
+            // without a declaring class, scan the members of every class in the declaring package
+            var names = classNames;
+            final var declaringPackage = matcher.declaringPackage;
+            if (declaringPackage != null) {
+                final int from = names.lowerBound(declaringPackage, 0);
+                names = names.slice(from, names.upperBoundPrefix(declaringPackage, from));
+            }
+            scanMembers(matcher, transformer, names);
+            return;
         }
 
-        var candidates = new ArrayList<Reflect>();
+        final var checked = new ArrayList<Reflect>();
         for (final var clazz : classList) {
-            final var reflects = transformer.transform(clazz);
-            candidates.addAll(List.of(reflects));
+            final MemberSnapshot<Reflect> snapshot;
+            try {
+                snapshot = transformer.transform(clazz);
+            } catch (LinkageError e) {
+                if (exceptionHandler != null) exceptionHandler.test(e);
+                continue;
+            }
+            for (var i = 0; i < snapshot.size(); ++i) {
+                if (matcher.doMatch(snapshot, i)) checked.add(snapshot.members[i]);
+            }
+        }
+        matcher.doMatch(new CheckedCandidates<>(checked));
+    }
+
+    // the class itself, its superclasses with includeSuper and every interface it implements with includeInterface
+    private static void collectHierarchy(@NonNull Class<?> clazz, boolean includeSuper, boolean includeInterface, @NonNull List<Class<?>> classes) {
+        classes.add(clazz);
+        if (!includeSuper && !includeInterface) return;
+        final var interfaces = new LinkedHashSet<Class<?>>();
+        for (var c = clazz; c != null; c = c.getSuperclass()) {
+            if (includeSuper && c != clazz) classes.add(c);
+            if (includeInterface) collectInterfaces(c, interfaces);
+        }
+        classes.addAll(interfaces);
+    }
+
+    // the same runtime package, that is the same package name and class loader
+    private static boolean isSamePackage(@NonNull Class<?> a, @NonNull Class<?> b) {
+        if (a.getClassLoader() != b.getClassLoader()) return false;
+        final var aName = a.getName();
+        final var bName = b.getName();
+        final int aDot = aName.lastIndexOf('.');
+        return aDot == bName.lastIndexOf('.') && aName.regionMatches(0, bName, 0, aDot + 1);
+    }
+
+    private static void collectInterfaces(@NonNull Class<?> clazz, @NonNull Set<Class<?>> interfaces) {
+        for (final var anInterface : clazz.getInterfaces()) {
+            if (interfaces.add(anInterface)) collectInterfaces(anInterface, interfaces);
         }
-        matcher.doMatch(candidates);
     }
 
     private void analysisClassLoader() {
-        final TreeSetView<String> classNames;
+        final ClassNameTable classNames;
         try {
-            classNames = getAllClassNamesFromClassLoader();
+            classNames = loadClassNames();
         } catch (Throwable e) {
             if (exceptionHandler != null) {
                 exceptionHandler.test(e);
@@ -819,73 +1154,528 @@ final class HookBuilderImpl implements HookBuilder {
             return;
         }
 
-        final boolean[] hasMatched = new boolean[]{false};
-        do {
-            // match class first
+        // without dex analysis, the raw class_defs of the apk still give cheap access flags and super types to prefilter on;
+        // only stored dexes are used, inflating a deflated one costs more than the classes it would save loading
+        DexLoader tableLoader = null;
+        DexClassTable[] classTables = null;
+        if (dexSlots == null) {
             for (final var classMatcher : rootClassMatchers) {
-                // not leaf
-                if (classMatcher.leafCount.get() != 1) continue;
-                if (classMatcher.pending) continue;
-                hasMatched[0] = rootClassMatchers.remove(classMatcher) || hasMatched[0];
-                matchExecutor.submit(() -> {
-                    TreeSetView<String> subset = classNames;
-                    if (classMatcher.name != null) {
-                        final var nameMatcher = classMatcher.name.matcher;
-                        if (nameMatcher.matchPrefix) {
-                            subset = classNames.subSet(nameMatcher.pattern, nameMatcher.pattern + Character.MAX_VALUE);
-                        } else if (classNames.contains(nameMatcher.pattern)) {
-                            subset = TreeSetView.ofSorted(new String[]{nameMatcher.pattern});
-                        } else {
-                            subset = TreeSetView.ofSorted(new String[0]);
-                        }
+                if (!classMatcher.hasClassTablePredicates()) continue;
+                try {
+                    tableLoader = new DexLoader(sourcePath);
+                    final var entries = tableLoader.getEntries();
+                    classTables = new DexClassTable[entries.size()];
+                    for (var entry : entries) {
+                        if (entry.isStored()) classTables[entry.dexId] = new DexClassTable(tableLoader.load(entry));
                     }
-                    final ArrayList<Class<?>> candidates = new ArrayList<>(subset.size());
-                    for (final var className : subset) {
-                        // then check the rest conditions that need to load the class
-                        final Class<?> theClass;
-                        try {
-                            theClass = Class.forName(className, false, classLoader);
-                            candidates.add(theClass);
-                        } catch (ClassNotFoundException e) {
-                            if (exceptionHandler != null && !exceptionHandler.test(e)) {
-                                break;
-                            }
-                        }
+                } catch (Throwable e) {
+                    if (exceptionHandler != null) exceptionHandler.test(e);
+                    classTables = null;
+                }
+                break;
+            }
+        }
+        final var tables = classTables;
+
+        final var readyQueue = new ReadyQueue(classNames, tables);
+        this.readyQueue = readyQueue;
+        readyQueue.drain();
+        // joinAll also waits for the tasks submitted meanwhile, so it returns once no matcher can become ready anymore
+        while (true) {
+            try {
+                matchExecutor.joinAll();
+                break;
+            } catch (Throwable e) {
+                if (exceptionHandler != null && !exceptionHandler.test(e)) break;
+            }
+        }
+        this.readyQueue = null;
+
+        if (tableLoader != null) {
+            try {
+                tableLoader.close();
+            } catch (IOException e) {
+                if (exceptionHandler != null) exceptionHandler.test(e);
+            }
+        }
+    }
+
+    // merge root matchers with the same fingerprint: the first one runs, the others take over its raw matches
+    // and still apply their own miss replacements
+    @SuppressWarnings("unchecked")
+    @VisibleForTesting
+    void eliminateCommonMatchers() {
+        final var matchers = new ArrayList<ReflectMatcherImpl<?, ?, ?, ?, ?>>();
+        matchers.addAll(rootClassMatchers);
+        matchers.addAll(rootFieldMatchers);
+        matchers.addAll(rootMethodMatchers);
+        matchers.addAll(rootConstructorMatchers);
+        matchers.addAll(dexExecutableMatchers);
+        final var canonicalizer = new Canonicalizer();
+        for (final var matcher : matchers) {
+            final var canonical = canonicalizer.canonical(matcher);
+            if (canonical == matcher) continue;
+            if (!rootClassMatchers.remove(matcher) && !rootFieldMatchers.remove(matcher) && !rootMethodMatchers.remove(matcher) && !rootConstructorMatchers.remove(matcher)) {
+                dexExecutableMatchers.remove(matcher);
+            }
+            follow((ReflectMatcherImpl<?, ?, Object, ?, ?>) canonical, (ReflectMatcherImpl<?, ?, Object, ?, ?>) matcher);
+        }
+    }
+
+    @VisibleForTesting
+    int getRootMatcherCount() {
+        return rootClassMatchers.size() + rootFieldMatchers.size() + rootMethodMatchers.size() + rootConstructorMatchers.size() + dexExecutableMatchers.size();
+    }
+
+    private <Reflect> void follow(@NonNull ReflectMatcherImpl<?, ?, Reflect, ?, ?> canonical, @NonNull ReflectMatcherImpl<?, ?, Reflect, ?, ?> duplicate) {
+        duplicate.leader = canonical;
+        canonical.followers.add(duplicate);
+    }
+
+    private final class Canonicalizer {
+        @NonNull
+        private final HashMap<ReflectMatcherImpl<?, ?, ?, ?, ?>, ReflectMatcherImpl<?, ?, ?, ?, ?>> canonicals = new HashMap<>();
+        @NonNull
+        private final HashMap<List<Object>, ReflectMatcherImpl<?, ?, ?, ?, ?>> fingerprints = new HashMap<>();
+
+        @NonNull
+        ReflectMatcherImpl<?, ?, ?, ?, ?> canonical(@NonNull ReflectMatcherImpl<?, ?, ?, ?, ?> matcher) {
+            final var known = canonicals.get(matcher);
+            if (known != null) return known;
+            // provisional, so that a dependency cycle ends here
+            canonicals.put(matcher, matcher);
+            final var fingerprint = matcher.fingerprint(this);
+            var canonical = matcher;
+            if (fingerprint != null) {
+                final var existing = fingerprints.get(fingerprint);
+                if (existing != null) canonical = existing;
+                else fingerprints.put(fingerprint, matcher);
+            }
+            canonicals.put(matcher, canonical);
+            return canonical;
+        }
+
+        // a value that equals for structurally identical dependencies; syntax trees keep their identity, and so do
+        // results with miss replacements, which may differ from the raw matches of their root
+        @Nullable
+        Object of(@Nullable Object dependency) {
+            if (dependency instanceof StringMatchImpl) {
+                final var matcher = ((StringMatchImpl) dependency).matcher;
+                return Arrays.asList(StringMatchImpl.class, matcher.pattern, matcher.matchPrefix, matcher.matchFirst);
+            } else if (dependency instanceof ReflectMatchImpl) {
+                final var match = (ReflectMatchImpl<?, ?, ?, ?, ?, ?>) dependency;
+                final var root = match.rootMatcher;
+                final LazySequenceImpl<?, ?, ?, ?, ?, ?, ?> sequence = root.lazySequence;
+                if (sequence == null || sequence.first != dependency) return dependency;
+                if (!sequence.missReplacements.isEmpty() || !match.missReplacements.isEmpty()) return dependency;
+                return Arrays.asList(ReflectMatchImpl.class, canonical(root));
+            } else if (dependency instanceof LazySequenceImpl) {
+                final var sequence = (LazySequenceImpl<?, ?, ?, ?, ?, ?, ?>) dependency;
+                final var root = sequence.rootMatcher;
+                if (root.lazySequence != dependency || !sequence.missReplacements.isEmpty()) return dependency;
+                return Arrays.asList(LazySequenceImpl.class, canonical(root));
+            } else if (dependency instanceof byte[]) {
+                return ByteBuffer.wrap((byte[]) dependency);
+            }
+            return dependency;
+        }
+    }
+
+    // starts each root matcher as soon as its dependencies are resolved, instead of rescanning the root queues in rounds;
+    // removing a matcher from its root queue claims it, so a matcher offered twice still runs once.
+    // ready matchers wait in a priority queue ordered by the longest estimated chain of work hanging on them,
+    // so that a free worker always picks the start of the critical path first
+    private final class ReadyQueue {
+        @NonNull
+        private final ClassNameTable classNames;
+        @Nullable
+        private final DexClassTable[] tables;
+        @NonNull
+        private final HashMap<ReflectMatcherImpl<?, ?, ?, ?, ?>, Long> ranks = new HashMap<>();
+        @NonNull
+        private final PriorityBlockingQueue<Job> jobs = new PriorityBlockingQueue<>();
+
+        private ReadyQueue(@NonNull ClassNameTable classNames, @Nullable DexClassTable[] tables) {
+            this.classNames = classNames;
+            this.tables = tables;
+            plan();
+        }
+
+        // rank every root matcher by its own cost plus the highest rank among the matchers waiting for it
+        private void plan() {
+            final var matchers = new ArrayList<ReflectMatcherImpl<?, ?, ?, ?, ?>>();
+            matchers.addAll(rootClassMatchers);
+            matchers.addAll(rootFieldMatchers);
+            matchers.addAll(rootMethodMatchers);
+            matchers.addAll(rootConstructorMatchers);
+            matchers.addAll(dexExecutableMatchers);
+            final var dependents = new HashMap<ReflectMatcherImpl<?, ?, ?, ?, ?>, ArrayList<ReflectMatcherImpl<?, ?, ?, ?, ?>>>();
+            for (final var matcher : matchers) {
+                synchronized (matcher.upstreams) {
+                    for (var upstream : matcher.upstreams) {
+                        // a merged duplicate waits for its leader, and so do its dependents
+                        if (upstream.leader != null) upstream = upstream.leader;
+                        var list = dependents.get(upstream);
+                        if (list == null) dependents.put(upstream, list = new ArrayList<>());
+                        list.add(matcher);
                     }
-                    classMatcher.doMatch(candidates);
-                });
+                }
             }
-            for (final var fieldMatcher : rootFieldMatchers) {
-                // not leaf
-                if (fieldMatcher.leafCount.get() != 1) continue;
-                if (fieldMatcher.pending) continue;
-                hasMatched[0] = rootFieldMatchers.remove(fieldMatcher) || hasMatched[0];
-                matchExecutor.submit(() -> memberClassLists(fieldMatcher, Class::getDeclaredFields));
+            for (final var matcher : matchers) rank(matcher, dependents);
+        }
+
+        private long rank(@NonNull ReflectMatcherImpl<?, ?, ?, ?, ?> matcher, @NonNull HashMap<ReflectMatcherImpl<?, ?, ?, ?, ?>, ArrayList<ReflectMatcherImpl<?, ?, ?, ?, ?>>> dependents) {
+            final var known = ranks.get(matcher);
+            if (known != null) return known;
+            final long cost = costOf(matcher);
+            // provisional, so that a dependency cycle ends here instead of recursing forever
+            ranks.put(matcher, cost);
+            long downstream = 0;
+            final var list = dependents.get(matcher);
+            if (list != null) {
+                for (final var dependent : list) downstream = Math.max(downstream, rank(dependent, dependents));
             }
+            ranks.put(matcher, cost + downstream);
+            return cost + downstream;
+        }
+
+        // estimated work of a matcher, counted in classes it loads or enumerates
+        private long costOf(@NonNull ReflectMatcherImpl<?, ?, ?, ?, ?> matcher) {
+            if (matcher instanceof ClassMatcherImpl) {
+                final var name = ((ClassMatcherImpl) matcher).name;
+                if (name == null) return classNames.size();
+                return name.matcher.matchPrefix ? rangeOf(name.matcher.pattern) + 1 : 1;
+            } else if (matcher instanceof ExecutableMatcherImpl && ((ExecutableMatcherImpl<?, ?, ?, ?>) matcher).hasDexPredicates()) {
+                // the index does the scan, only the hits are loaded
+                return 1;
+            } else if (matcher instanceof MemberMatcherImpl) {
+                final var memberMatcher = (MemberMatcherImpl<?, ?, ?, ?, ?>) matcher;
+                if (memberMatcher.declaringClass != null) return 1;
+                return memberMatcher.declaringPackage == null ? classNames.size() : rangeOf(memberMatcher.declaringPackage) + 1;
+            }
+            return 1;
+        }
+
+        private int rangeOf(@NonNull String prefix) {
+            final int from = classNames.lowerBound(prefix, 0);
+            return classNames.upperBoundPrefix(prefix, from) - from;
+        }
+
+        private long rankOf(@NonNull ReflectMatcherImpl<?, ?, ?, ?, ?> matcher) {
+            final var rank = ranks.get(matcher);
+            return rank == null ? 1 : rank;
+        }
 
-            for (final var methodMatcher : rootMethodMatchers) {
-                // not leaf
-                if (methodMatcher.leafCount.get() != 1) continue;
-                if (methodMatcher.pending) continue;
-                hasMatched[0] = rootMethodMatchers.remove(methodMatcher) || hasMatched[0];
-                matchExecutor.submit(() -> memberClassLists(methodMatcher, Class::getDeclaredMethods));
+        private void schedule(long rank, @NonNull Runnable task) {
+            jobs.add(new Job(rank, task));
+            matchExecutor.submit(() -> {
+                final var job = jobs.poll();
+                if (job != null) job.task.run();
+            });
+        }
+
+        private boolean isReady(@NonNull ReflectMatcherImpl<?, ?, ?, ?, ?> matcher) {
+            return matcher.leafCount.get() == 1 && !matcher.pending;
+        }
+
+        // start every root matcher that is ready already, the rest arrive through offer
+        void drain() {
+            final var readyClassMatchers = new ArrayList<ClassMatcherImpl>();
+            for (final var classMatcher : rootClassMatchers) {
+                if (isReady(classMatcher) && rootClassMatchers.remove(classMatcher)) readyClassMatchers.add(classMatcher);
+            }
+            scheduleClassMatchers(readyClassMatchers);
+            for (final var fieldMatcher : rootFieldMatchers) offer(fieldMatcher);
+            for (final var methodMatcher : rootMethodMatchers) offer(methodMatcher);
+            for (final var constructorMatcher : rootConstructorMatchers) offer(constructorMatcher);
+            final var dexMatchers = new ArrayList<ExecutableMatcherImpl<?, ?, ?, ?>>();
+            long dexRank = 0;
+            for (final var executableMatcher : dexExecutableMatchers) {
+                if (isReady(executableMatcher) && dexExecutableMatchers.remove(executableMatcher)) {
+                    dexMatchers.add(executableMatcher);
+                    dexRank = Math.max(dexRank, rankOf(executableMatcher));
+                }
             }
+            // matchers ready together share one opcode automaton
+            if (!dexMatchers.isEmpty()) schedule(dexRank, () -> matchDexMethods(dexMatchers));
+        }
+
+        void offer(@NonNull ReflectMatcherImpl<?, ?, ?, ?, ?> matcher) {
+            if (!isReady(matcher)) return;
+            final long rank = rankOf(matcher);
+            if (matcher instanceof ClassMatcherImpl) {
+                if (rootClassMatchers.remove(matcher)) scheduleClassMatchers(Collections.singletonList((ClassMatcherImpl) matcher));
+            } else if (matcher instanceof FieldMatcherImpl) {
+                if (rootFieldMatchers.remove(matcher)) schedule(rank, () -> memberClassLists((FieldMatcherImpl) matcher, reflector::getFields, classNames));
+            } else if (matcher instanceof MethodMatcherImpl) {
+                if (rootMethodMatchers.remove(matcher)) schedule(rank, () -> memberClassLists((MethodMatcherImpl) matcher, reflector::getMethods, classNames));
+                else if (dexExecutableMatchers.remove(matcher)) schedule(rank, () -> matchDexMethods(Collections.singletonList((MethodMatcherImpl) matcher)));
+            } else if (matcher instanceof ConstructorMatcherImpl) {
+                if (rootConstructorMatchers.remove(matcher)) schedule(rank, () -> memberClassLists((ConstructorMatcherImpl) matcher, reflector::getConstructors, classNames));
+                else if (dexExecutableMatchers.remove(matcher)) schedule(rank, () -> matchDexMethods(Collections.singletonList((ConstructorMatcherImpl) matcher)));
+            }
+        }
 
-            for (final var constructorMatcher : rootConstructorMatchers) {
-                // not leaf
-                if (constructorMatcher.leafCount.get() != 1) continue;
-                if (constructorMatcher.pending) continue;
-                hasMatched[0] = rootConstructorMatchers.remove(constructorMatcher) || hasMatched[0];
-                matchExecutor.submit(() -> memberClassLists(constructorMatcher, Class::getDeclaredConstructors));
+        private void scheduleClassMatchers(@NonNull List<ClassMatcherImpl> classMatchers) {
+            final var subsets = matchClassNames(classNames, classMatchers);
+            final var tables = this.tables;
+            for (var i = 0; i < classMatchers.size(); ++i) {
+                final var classMatcher = classMatchers.get(i);
+                final var subset = subsets[i];
+                schedule(rankOf(classMatcher), () -> {
+                    final var dexSlots = HookBuilderImpl.this.dexSlots;
+                    if (dexSlots != null && classMatcher.hasDexIndexPredicates()) {
+                        // hierarchy and access flag predicates on the dex indexes first, so rejected classes are never loaded;
+                        // they need every dex, as a class is looked up in the one defining it
+                        whenDexesReady(dexSlots, dexIndexes -> {
+                            final var dexHits = classMatcher.doMatchIndex(dexIndexes);
+                            //noinspection ConstantConditions
+                            loadClassCandidates(classMatcher, subset, className -> classMatcher.acceptsDexClass(dexIndexes, dexHits, className));
+                        });
+                        return;
+                    }
+                    final var superTypes = tables == null ? null : classMatcher.getSuperTypes(tables);
+                    //noinspection ConstantConditions
+                    loadClassCandidates(classMatcher, subset, className -> superTypes == null || classMatcher.acceptsClassTables(tables, superTypes, className));
+                });
+            }
+        }
+    }
+
+    // coalesces the observer notifications of resolved matches, so that one executor task drains up to a batch of them
+    // instead of each notification paying for its own task
+    private final class Notifier {
+        @NonNull
+        private final ConcurrentLinkedQueue<Runnable> notifications = new ConcurrentLinkedQueue<>();
+        @NonNull
+        private final AtomicInteger queued = new AtomicInteger(0);
+        // notifications posted while this thread runs inline ones, run after them instead of nested in them
+        @NonNull
+        private final ThreadLocal<ArrayDeque<Runnable>> inlined = new ThreadLocal<>();
+        private volatile boolean inline = false;
+
+        void post(int observers, @NonNull Runnable notification) {
+            if (observers == 0) return;
+            if (inline) {
+                var pending = inlined.get();
+                if (pending != null) {
+                    pending.add(notification);
+                    return;
+                }
+                inlined.set(pending = new ArrayDeque<>());
+                try {
+                    for (var next = notification; next != null; next = pending.poll()) run(next);
+                } finally {
+                    inlined.remove();
+                }
+                return;
+            }
+            notifications.add(notification);
+            if (queued.getAndIncrement() == 0) matchExecutor.submit(this::drain);
+        }
+
+        private void drain() {
+            var done = 0;
+            while (done < notifyBatchSize) {
+                final var notification = notifications.poll();
+                if (notification == null) break;
+                run(notification);
+                ++done;
             }
+            // whatever arrived meanwhile or did not fit goes to the next batch
+            if (queued.addAndGet(-done) > 0) matchExecutor.submit(this::drain);
+        }
+
+        private void run(@NonNull Runnable notification) {
             try {
-                matchExecutor.joinAll();
+                notification.run();
             } catch (Throwable e) {
-                if (exceptionHandler != null) {
-                    if (!exceptionHandler.test(e)) break;
+                if (exceptionHandler != null) exceptionHandler.test(e);
+            }
+        }
+    }
+
+    private static final class Job implements Comparable<Job> {
+        private final long rank;
+        @NonNull
+        private final Runnable task;
+
+        private Job(long rank, @NonNull Runnable task) {
+            this.rank = rank;
+            this.task = task;
+        }
+
+        // higher ranks first
+        @Override
+        public int compareTo(@NonNull Job other) {
+            return Long.compare(other.rank, rank);
+        }
+    }
+
+    // candidate names of every class matcher, by merge-joining the sorted name patterns against the sorted names
+    @NonNull
+    private static ClassNameTable[] matchClassNames(@NonNull ClassNameTable classNames, @NonNull List<ClassMatcherImpl> classMatchers) {
+        final var subsets = new ClassNameTable[classMatchers.size()];
+        final var named = new ArrayList<Integer>();
+        for (var i = 0; i < subsets.length; ++i) {
+            if (classMatchers.get(i).name == null) subsets[i] = classNames;
+            else named.add(i);
+        }
+        //noinspection ConstantConditions
+        Collections.sort(named, (a, b) -> classMatchers.get(a).name.matcher.pattern.compareTo(classMatchers.get(b).name.matcher.pattern));
+        final int size = classNames.size();
+        int cursor = 0;
+        for (final var i : named) {
+            //noinspection ConstantConditions
+            final var nameMatcher = classMatchers.get(i).name.matcher;
+            final var pattern = nameMatcher.pattern;
+            // the cursor only moves forward as the patterns are sorted
+            cursor = classNames.lowerBound(pattern, cursor);
+            int end = cursor;
+            if (nameMatcher.matchPrefix) {
+                end = classNames.upperBoundPrefix(pattern, cursor);
+            } else if (cursor < size && classNames.compare(cursor, pattern, false) == 0) {
+                end = cursor + 1;
+            }
+            subsets[i] = classNames.slice(cursor, end);
+        }
+        return subsets;
+    }
+
+    // enumerate the members of the named classes in parallel chunks and match them in name order once all are done;
+    // for match first, chunks after the first one with a hit stop early as they cannot contribute
+    private <Reflect extends Member> void scanMembers(@NonNull MemberMatcherImpl<?, ?, Reflect, ?, ?> matcher, @NonNull Transformer<Class<?>, MemberSnapshot<Reflect>> transformer, @NonNull ClassNameTable names) {
+        final var chunks = new AtomicReferenceArray<List<Reflect>>(Math.max(1, (names.size() + classLoadChunk - 1) / classLoadChunk));
+        final var remaining = new AtomicInteger(chunks.length());
+        final var stopped = new AtomicBoolean(false);
+        final var firstHit = new AtomicInteger(chunks.length());
+        scanMemberRange(matcher, transformer, names, chunks, remaining, stopped, firstHit, 0, names.size());
+    }
+
+    private <Reflect extends Member> void scanMemberRange(@NonNull MemberMatcherImpl<?, ?, Reflect, ?, ?> matcher, @NonNull Transformer<Class<?>, MemberSnapshot<Reflect>> transformer, @NonNull ClassNameTable names, @NonNull AtomicReferenceArray<List<Reflect>> chunks, @NonNull AtomicInteger remaining, @NonNull AtomicBoolean stopped, @NonNull AtomicInteger firstHit, int from, int to) {
+        while (to - from > classLoadChunk) {
+            final int mid = from + (to - from + classLoadChunk - 1) / classLoadChunk / 2 * classLoadChunk;
+            final int upperTo = to;
+            matchExecutor.submit(() -> scanMemberRange(matcher, transformer, names, chunks, remaining, stopped, firstHit, mid, upperTo));
+            to = mid;
+        }
+        final int chunk = from / classLoadChunk;
+        final var hits = new ArrayList<Reflect>();
+        try {
+            for (final var className : names.slice(from, to)) {
+                if (stopped.get() || chunk > firstHit.get()) break;
+                try {
+                    final var snapshot = transformer.transform(reflector.findClass(className));
+                    for (var i = 0; i < snapshot.size(); ++i) {
+                        if (matcher.doMatch(snapshot, i)) hits.add(snapshot.members[i]);
+                    }
+                } catch (ClassNotFoundException | LinkageError e) {
+                    if (exceptionHandler != null && !exceptionHandler.test(e)) {
+                        stopped.set(true);
+                    }
+                }
+                if (matcher.matchFirst && !hits.isEmpty()) {
+                    int first;
+                    while (chunk < (first = firstHit.get()) && !firstHit.compareAndSet(first, chunk)) ;
+                    break;
+                }
+            }
+        } finally {
+            // even a failed chunk counts as done, otherwise the matcher would never complete
+            chunks.set(chunk, hits);
+            if (remaining.decrementAndGet() == 0) matcher.doMatch(new CheckedCandidates<>(joinChunks(chunks)));
+        }
+    }
+
+    @NonNull
+    private static <T> List<T> joinChunks(@NonNull AtomicReferenceArray<List<T>> chunks) {
+        var size = 0;
+        for (var i = 0; i < chunks.length(); ++i) size += chunks.get(i).size();
+        final var joined = new ArrayList<T>(size);
+        for (var i = 0; i < chunks.length(); ++i) joined.addAll(chunks.get(i));
+        return joined;
+    }
+
+    // load the candidates of a class matcher in parallel chunks and match them in name order once all are loaded
+    private void loadClassCandidates(@NonNull ClassMatcherImpl classMatcher, @NonNull ClassNameTable names, @NonNull Predicate<String> filter) {
+        final var chunks = new AtomicReferenceArray<List<Class<?>>>(Math.max(1, (names.size() + classLoadChunk - 1) / classLoadChunk));
+        final var remaining = new AtomicInteger(chunks.length());
+        final var stopped = new AtomicBoolean(false);
+        loadClassRange(classMatcher, names, filter, chunks, remaining, stopped, 0, names.size());
+    }
+
+    private void loadClassRange(@NonNull ClassMatcherImpl classMatcher, @NonNull ClassNameTable names, @NonNull Predicate<String> filter, @NonNull AtomicReferenceArray<List<Class<?>>> chunks, @NonNull AtomicInteger remaining, @NonNull AtomicBoolean stopped, int from, int to) {
+        // split in halves on chunk boundaries, hand the upper half to another worker and keep the lower one
+        while (to - from > classLoadChunk) {
+            final int mid = from + (to - from + classLoadChunk - 1) / classLoadChunk / 2 * classLoadChunk;
+            final int upperTo = to;
+            matchExecutor.submit(() -> loadClassRange(classMatcher, names, filter, chunks, remaining, stopped, mid, upperTo));
+            to = mid;
+        }
+        final var loaded = new ArrayList<Class<?>>();
+        try {
+            for (final var className : names.slice(from, to)) {
+                if (stopped.get()) break;
+                if (!filter.test(className)) continue;
+                // then check the rest conditions that need to load the class
+                try {
+                    loaded.add(reflector.findClass(className));
+                } catch (ClassNotFoundException e) {
+                    if (exceptionHandler != null && !exceptionHandler.test(e)) {
+                        stopped.set(true);
+                    }
                 }
             }
-        } while (hasMatched[0]);
+        } finally {
+            chunks.set(from / classLoadChunk, loaded);
+            if (remaining.decrementAndGet() == 0) {
+                // the filter is done with the dex indexes
+                releaseDexSlots(HookBuilderImpl.this.dexSlots, classMatcher.dexReader);
+                classMatcher.doMatch(joinChunks(chunks));
+            }
+        }
+    }
+
+    // candidates that already passed the member predicates on their snapshots
+    private static final class CheckedCandidates<T> extends AbstractCollection<T> {
+        @NonNull
+        private final List<T> candidates;
+
+        CheckedCandidates(@NonNull List<T> candidates) {
+            this.candidates = candidates;
+        }
+
+        @NonNull
+        @Override
+        public Iterator<T> iterator() {
+            return candidates.iterator();
+        }
+
+        @Override
+        public int size() {
+            return candidates.size();
+        }
+    }
+
+    private final static int flagCheck = 1;
+    private final static int nameCheck = 2;
+    private final static int reflectCheck = 4;
+    private final static int syntaxCheck = 16;
+
+    // one predicate of a matcher with its estimated cost, on a reflect object or on a slot of a member snapshot
+    @SuppressWarnings("unchecked")
+    private abstract static class Check<Reflect> {
+        final int cost;
+
+        Check(int cost) {
+            this.cost = cost;
+        }
+
+        abstract boolean test(@NonNull Reflect reflect);
+
+        boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+            return test((Reflect) snapshot.members[index]);
+        }
     }
 
     private abstract static class BaseMatcherImpl<Self extends BaseMatcherImpl<Self, Reflect, DexId>, Reflect, DexId extends DexParser.Id<DexId>> {
@@ -916,15 +1706,42 @@ final class HookBuilderImpl implements HookBuilder {
         protected int includeModifiers = 0; // (real & includeModifiers) == includeModifiers
         protected int excludeModifiers = 0; // (real & excludeModifiers) == 0
         protected volatile boolean pending = true;
+        // a pending root that may still start later as the replacement of a miss
+        protected volatile boolean substitute = false;
+        // counted as a reader of every dex by analysisDex, so it has to release them once done
+        protected boolean dexReader = false;
+        // root matchers this one waits for, one entry per dependency, to plan the build by
+        @GuardedBy("upstreams")
+        @NonNull
+        protected final ArrayList<ReflectMatcherImpl<?, ?, ?, ?, ?>> upstreams = new ArrayList<>();
+        // set by eliminateCommonMatchers before matching starts: the duplicates that take over the matches
+        // of this one, and the matcher this one follows instead of running
+        @NonNull
+        private final ArrayList<ReflectMatcherImpl<?, ?, Reflect, ?, ?>> followers = new ArrayList<>();
+        @Nullable
+        private ReflectMatcherImpl<?, ?, ?, ?, ?> leader = null;
         @Nullable
         private volatile SeqImpl lazySequence = null;
+        // predicates in the order of checkOrder, compiled on the first candidate
+        @Nullable
+        protected Check<Reflect>[] checks = null;
+        @Nullable
+        private volatile PredicateOrder checkOrder = null;
         private final BaseObserver<?> dependencyCallback = (BaseObserver<Object>) result -> {
-            if (leafCount.decrementAndGet() == 0) doMatch();
+            final int leafCount = this.leafCount.decrementAndGet();
+            if (leafCount == 0) {
+                doMatch();
+            } else if (leafCount == 1) {
+                // only the candidates are left, so a root matcher can start right away
+                final var readyQueue = HookBuilderImpl.this.readyQueue;
+                if (readyQueue != null) readyQueue.offer(this);
+            }
         };
 
         protected ReflectMatcherImpl(@Nullable ReflectMatcherImpl<?, ?, ?, ?, ?> rootMatcher, boolean matchFirst) {
             super(matchFirst);
             this.rootMatcher = rootMatcher == null ? this : rootMatcher;
+            matcherCount.incrementAndGet();
         }
 
         protected final synchronized void ensureNotFinalized() {
@@ -1008,15 +1825,33 @@ final class HookBuilderImpl implements HookBuilder {
 
         protected abstract void setNonPending();
 
+        boolean mayRun() {
+            return !pending || substitute;
+        }
+
+        // structural identity of the predicates, null if this matcher has to run on its own;
+        // dependencies enter through their canonical matchers so that identical chains collapse as a whole
+        @CallSuper
+        @Nullable
+        protected List<Object> fingerprint(@NonNull Canonicalizer canonicalizer) {
+            // a matcher that has matched already cannot hand its matches to followers anymore
+            if (pending || rootMatcher != this || lazySequence == null || leafCount.get() <= 0) return null;
+            return new ArrayList<>(Arrays.asList(getClass(), matchFirst, includeModifiers, excludeModifiers));
+        }
+
         @NonNull
         protected final <T extends ReflectMatchImpl<T, U, RR, ?, ?, D>, U extends ReflectMatch<U, RR, ?>, RR, D extends DexParser.Id<D>> T addDependency(@Nullable T field, @NonNull U input) {
             final var in = (T) input;
             if (field != null) {
-                in.removeObserver((BaseObserver<RR>) dependencyCallback);
+                field.removeObserver((BaseObserver<RR>) dependencyCallback);
             } else {
                 leafCount.incrementAndGet();
             }
             in.addObserver((BaseObserver<RR>) dependencyCallback);
+            synchronized (upstreams) {
+                if (field != null) upstreams.remove(field.rootMatcher);
+                upstreams.add(in.rootMatcher);
+            }
             return in;
         }
 
@@ -1027,6 +1862,14 @@ final class HookBuilderImpl implements HookBuilder {
                 field.removeObserver(dependencyCallback, leafCount);
             }
             in.addObserver(dependencyCallback, leafCount);
+            synchronized (upstreams) {
+                if (field != null) {
+                    final var old = new ArrayList<ReflectMatcherImpl<?, ?, ?, ?, ?>>();
+                    field.collectRootMatchers(old);
+                    for (final var matcher : old) upstreams.remove(matcher);
+                }
+                in.collectRootMatchers(upstreams);
+            }
             return in;
         }
 
@@ -1037,24 +1880,32 @@ final class HookBuilderImpl implements HookBuilder {
             }
             leafCount.set(0);
             lazySequence.match(matches);
+            for (final var follower : followers) follower.match(matches);
         }
 
         private void doMatch() {
             final var candidates = this.candidates.getAndSet(null);
             if (candidates != null) {
+                final boolean checked = candidates instanceof CheckedCandidates;
                 final var matches = new ArrayList<Reflect>();
                 for (final var candidate : candidates) {
-                    if (doMatch(candidate)) {
+                    if (checked || doMatch(candidate)) {
                         matches.add(candidate);
                         if (matchFirst) {
                             break;
                         }
                     }
                 }
-                match(matches);
+                match(distinct(matches));
             }
         }
 
+        // the matches left once those standing behind another one are dropped, see MethodMatcherImpl
+        @NonNull
+        protected List<Reflect> distinct(@NonNull List<Reflect> matches) {
+            return matches;
+        }
+
         // do match on reflect
         protected final void doMatch(@NonNull Collection<Reflect> candidates) {
             var leafCount = this.leafCount.decrementAndGet();
@@ -1064,20 +1915,70 @@ final class HookBuilderImpl implements HookBuilder {
             if (leafCount == 0) doMatch();
         }
 
+        protected final boolean doMatch(@NonNull Reflect reflect) {
+            final var checkOrder = compileChecks();
+            final var checks = this.checks;
+            final var order = checkOrder.get();
+            for (var i = 0; i < order.length; ++i) {
+                //noinspection ConstantConditions
+                if (!checks[order[i]].test(reflect)) {
+                    checkOrder.record(order, i + 1, false);
+                    return false;
+                }
+            }
+            checkOrder.record(order, order.length, true);
+            return true;
+        }
+
+        @NonNull
+        protected final PredicateOrder compileChecks() {
+            var checkOrder = this.checkOrder;
+            if (checkOrder != null) return checkOrder;
+            synchronized (this) {
+                checkOrder = this.checkOrder;
+                if (checkOrder != null) return checkOrder;
+                final var checks = new ArrayList<Check<Reflect>>();
+                addChecks(checks);
+                final var costs = new int[checks.size()];
+                for (var i = 0; i < costs.length; ++i) costs[i] = checks.get(i).cost;
+                @SuppressWarnings("unchecked") final var array = (Check<Reflect>[]) new Check<?>[0];
+                this.checks = checks.toArray(array);
+                return this.checkOrder = new PredicateOrder(costs);
+            }
+        }
+
+        // only the predicates that are set, in any order
         @CallSuper
-        protected boolean doMatch(@NonNull Reflect reflect) {
-            final int modifiers;
-            if (reflect instanceof Class<?>) modifiers = ((Class<?>) reflect).getModifiers();
-            else if (reflect instanceof Member) modifiers = ((Member) reflect).getModifiers();
-            else if (reflect instanceof ParameterImpl)
-                modifiers = ((ParameterImpl) reflect).getModifiers();
-            else modifiers = 0;
+        protected void addChecks(@NonNull List<Check<Reflect>> checks) {
+            if ((includeModifiers | excludeModifiers) == 0) return;
+            checks.add(new Check<Reflect>(flagCheck) {
+                @Override
+                boolean test(@NonNull Reflect reflect) {
+                    final int modifiers;
+                    if (reflect instanceof Class<?>) modifiers = ((Class<?>) reflect).getModifiers();
+                    else if (reflect instanceof Member) modifiers = ((Member) reflect).getModifiers();
+                    else if (reflect instanceof ParameterImpl)
+                        modifiers = ((ParameterImpl) reflect).getModifiers();
+                    else modifiers = 0;
+                    return doMatchModifiers(modifiers);
+                }
+
+                @Override
+                boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+                    return doMatchModifiers(snapshot.modifiers[index]);
+                }
+            });
+        }
+
+        protected final boolean doMatchModifiers(int modifiers) {
             if ((modifiers & includeModifiers) != includeModifiers) return false;
             return (modifiers & excludeModifiers) == 0;
         }
     }
 
     private final class ClassMatcherImpl extends ReflectMatcherImpl<ClassMatcherImpl, ClassMatcher, Class<?>, DexParser.TypeId, ClassLazySequenceImpl> implements ClassMatcher {
+        private final static int dexClassFlags = Modifier.INTERFACE | Modifier.ABSTRACT;
+
         @Nullable
         private ClassMatchImpl superClass = null;
 
@@ -1095,30 +1996,125 @@ final class HookBuilderImpl implements HookBuilder {
         @Override
         protected ClassLazySequenceImpl onBuild() {
             if (key != null) keyedClassMatchers.put(key, this);
-            if (rootMatcher != this) rootClassMatchers.add(this);
+            if (rootMatcher == this) rootClassMatchers.add(this);
             return new ClassLazySequenceImpl(rootMatcher);
         }
 
         @CallSuper
         @Override
         protected void setNonPending() {
+            pending = false;
             if (superClass != null) superClass.rootMatcher.setNonPending();
             if (containsInterfaces != null) containsInterfaces.setNonPending();
         }
 
+        @Nullable
+        @Override
+        protected List<Object> fingerprint(@NonNull Canonicalizer canonicalizer) {
+            final var fingerprint = super.fingerprint(canonicalizer);
+            if (fingerprint == null) return null;
+            Collections.addAll(fingerprint, canonicalizer.of(superClass), canonicalizer.of(name), canonicalizer.of(containsInterfaces));
+            return fingerprint;
+        }
+
         @Override
-        protected boolean doMatch(@NonNull Class<?> theClass) {
-            if (!super.doMatch(theClass)) return false;
-            if (superClass != null) {
-                final var superClass = theClass.getSuperclass();
-                final var superClassMatch = this.superClass.match.get();
-                return superClass != null && superClassMatch.reflect != null && superClass == superClassMatch.reflect;
+        protected void addChecks(@NonNull List<Check<Class<?>>> checks) {
+            super.addChecks(checks);
+            if (superClass != null) checks.add(new Check<Class<?>>(reflectCheck) {
+                @Override
+                boolean test(@NonNull Class<?> theClass) {
+                    final var superClass = theClass.getSuperclass();
+                    //noinspection ConstantConditions
+                    final var superClassMatch = ClassMatcherImpl.this.superClass.match.get();
+                    return superClass != null && superClassMatch != null && superClass == superClassMatch.reflect;
+                }
+            });
+            if (containsInterfaces != null) checks.add(new Check<Class<?>>(syntaxCheck) {
+                @Override
+                boolean test(@NonNull Class<?> theClass) {
+                    final var ifArray = theClass.getInterfaces();
+                    final var ifs = new HashSet<Class<?>>(ifArray.length);
+                    Collections.addAll(ifs, ifArray);
+                    //noinspection ConstantConditions
+                    return containsInterfaces.test(ifs);
+                }
+            });
+        }
+
+        // per dex classes passing the hierarchy predicates, resolved on the type ids, or null if nothing to check there
+        @Nullable
+        private PostingSet[] doMatchIndex(@NonNull DexIndex[] dexIndexes) {
+            if (!hasDexIndexPredicates()) return null;
+            final var res = new PostingSet[dexIndexes.length];
+            for (final var index : dexIndexes) {
+                if (index == null) continue;
+                var set = PostingSet.ALL;
+                if (superClass != null) {
+                    final var id = superClass.getDexId(index);
+                    set = id == DexParser.NO_INDEX ? PostingSet.EMPTY : new PostingSet(index.getSubclasses(id), false);
+                }
+                if (containsInterfaces != null && (set.complement || set.ids.length > 0)) {
+                    set = set.and(containsInterfaces.evaluate(index, index::getImplementers));
+                }
+                res[index.dexId] = set;
+            }
+            return res;
+        }
+
+        private boolean hasDexIndexPredicates() {
+            return superClass != null || containsInterfaces != null || ((includeModifiers | excludeModifiers) & dexClassFlags) != 0;
+        }
+
+        // classes not defined in any indexed dex are always accepted and left to doMatch
+        private boolean acceptsDexClass(@NonNull DexIndex[] dexIndexes, @NonNull PostingSet[] dexHits, @NonNull String className) {
+            final var descriptor = "L" + className.replace('.', '/') + ";";
+            for (final var index : dexIndexes) {
+                if (index == null) continue;
+                final int type = index.findType(descriptor);
+                if (type == DexParser.NO_INDEX) continue;
+                final int flags = index.getClassAccessFlags(type);
+                if (flags == -1) continue;
+                // only flags that the inner class annotation cannot change from the class_def ones
+                if ((flags & includeModifiers & dexClassFlags) != (includeModifiers & dexClassFlags)) return false;
+                if ((flags & excludeModifiers & dexClassFlags) != 0) return false;
+                return dexHits[index.dexId].contains(type);
+            }
+            return true;
+        }
+
+        private boolean hasClassTablePredicates() {
+            return superClass != null || ((includeModifiers | excludeModifiers) & dexClassFlags) != 0;
+        }
+
+        // type id of the matched superclass in each raw table, or null if there is nothing to prefilter on
+        @Nullable
+        private int[] getSuperTypes(@NonNull DexClassTable[] tables) {
+            if (!hasClassTablePredicates()) return null;
+            final var superTypes = new int[tables.length];
+            Arrays.fill(superTypes, DexParser.NO_INDEX);
+            if (superClass == null) return superTypes;
+            final var superClassMatch = superClass.match.get();
+            if (superClassMatch == null || superClassMatch.reflect == null) return superTypes;
+            final var descriptor = DexIndex.descriptorOf(superClassMatch.reflect);
+            for (var i = 0; i < tables.length; ++i) {
+                if (tables[i] != null) superTypes[i] = tables[i].findType(descriptor);
             }
-            if (containsInterfaces != null) {
-                final var ifArray = theClass.getInterfaces();
-                final var ifs = new HashSet<Class<?>>(ifArray.length);
-                Collections.addAll(ifs, ifArray);
-                return containsInterfaces.test(ifs);
+            return superTypes;
+        }
+
+        // prefilter on the raw class_defs when there is no dex index; classes defined elsewhere are left to doMatch
+        private boolean acceptsClassTables(@NonNull DexClassTable[] tables, @NonNull int[] superTypes, @NonNull String className) {
+            final var descriptor = "L" + className.replace('.', '/') + ";";
+            for (var i = 0; i < tables.length; ++i) {
+                final var table = tables[i];
+                // classes of a deflated dex are left to doMatch
+                if (table == null) continue;
+                final int type = table.findType(descriptor);
+                if (!table.isDefined(type)) continue;
+                final int flags = table.getClassAccessFlags(type);
+                if ((flags & includeModifiers & dexClassFlags) != (includeModifiers & dexClassFlags)) return false;
+                if ((flags & excludeModifiers & dexClassFlags) != 0) return false;
+                return superClass == null || (superTypes[i] != DexParser.NO_INDEX && table.getSuperClass(type) == superTypes[i]);
             }
             return true;
         }
@@ -1196,16 +2192,27 @@ final class HookBuilderImpl implements HookBuilder {
 
         @Override
         protected void setNonPending() {
+            pending = false;
             if (type != null) type.rootMatcher.setNonPending();
         }
 
         @Override
-        protected boolean doMatch(@NonNull Parameter parameter) {
-            if (!super.doMatch(parameter)) return false;
-            if (index >= 0 && index != parameter.getIndex()) return false;
-            if (type == null) return true;
-            var typeMatch = type.match.get();
-            return typeMatch != null && typeMatch.reflect == parameter.getType();
+        protected void addChecks(@NonNull List<Check<Parameter>> checks) {
+            super.addChecks(checks);
+            if (index >= 0) checks.add(new Check<Parameter>(flagCheck) {
+                @Override
+                boolean test(@NonNull Parameter parameter) {
+                    return index == parameter.getIndex();
+                }
+            });
+            if (type != null) checks.add(new Check<Parameter>(flagCheck) {
+                @Override
+                boolean test(@NonNull Parameter parameter) {
+                    //noinspection ConstantConditions
+                    var typeMatch = type.match.get();
+                    return typeMatch != null && typeMatch.reflect == parameter.getType();
+                }
+            });
         }
 
         @NonNull
@@ -1262,6 +2269,9 @@ final class HookBuilderImpl implements HookBuilder {
         @Nullable
         protected ClassMatchImpl declaringClass = null;
 
+        @Nullable
+        protected String declaringPackage = null;
+
         protected boolean includeSuper = false;
 
         protected boolean includeInterface = false;
@@ -1273,15 +2283,68 @@ final class HookBuilderImpl implements HookBuilder {
         @CallSuper
         @Override
         protected void setNonPending() {
+            pending = false;
             if (declaringClass != null) declaringClass.rootMatcher.setNonPending();
         }
 
-        @Override
-        protected boolean doMatch(@NonNull Reflect reflect) {
-            if (!super.doMatch(reflect)) return false;
-            if (declaringClass == null) return true;
+        @CallSuper
+        @Nullable
+        @Override
+        protected List<Object> fingerprint(@NonNull Canonicalizer canonicalizer) {
+            final var fingerprint = super.fingerprint(canonicalizer);
+            if (fingerprint == null) return null;
+            Collections.addAll(fingerprint, canonicalizer.of(declaringClass), declaringPackage, includeSuper, includeInterface);
+            return fingerprint;
+        }
+
+        @CallSuper
+        @Override
+        protected void addChecks(@NonNull List<Check<Reflect>> checks) {
+            super.addChecks(checks);
+            if (declaringClass == null && declaringPackage == null) return;
+            checks.add(new Check<Reflect>(declaringClass == null ? nameCheck : flagCheck) {
+                @Override
+                boolean test(@NonNull Reflect reflect) {
+                    final var owner = reflect.getDeclaringClass();
+                    return doMatchOwner(owner, declaringPackage == null ? null : owner.getName(), reflect.getModifiers());
+                }
+
+                @Override
+                boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+                    return doMatchOwner(snapshot.declaringClass, snapshot.declaringName, snapshot.modifiers[index]);
+                }
+            });
+        }
+
+        // the same predicates as doMatch on a member, read from its snapshot
+        protected final boolean doMatch(@NonNull MemberSnapshot<Reflect> snapshot, int index) {
+            final var checkOrder = compileChecks();
+            final var checks = this.checks;
+            final var order = checkOrder.get();
+            for (var i = 0; i < order.length; ++i) {
+                //noinspection ConstantConditions
+                if (!checks[order[i]].test(snapshot, index)) {
+                    checkOrder.record(order, i + 1, false);
+                    return false;
+                }
+            }
+            checkOrder.record(order, order.length, true);
+            return true;
+        }
+
+        private boolean doMatchOwner(@NonNull Class<?> owner, @Nullable String ownerName, int modifiers) {
+            if (declaringClass == null) {
+                return declaringPackage == null || ownerName != null && ownerName.startsWith(declaringPackage);
+            }
             final var declaringClass = this.declaringClass.match.get();
-            return declaringClass != null && declaringClass.reflect == reflect.getDeclaringClass();
+            if (declaringClass == null || declaringClass.reflect == null) return false;
+            if (declaringClass.reflect == owner) return true;
+            // inherited members, see collectHierarchy; constructors, private members and static interface methods are not inherited
+            if (this instanceof ConstructorMatcherImpl || Modifier.isPrivate(modifiers)) return false;
+            if (owner.isInterface() ? !includeInterface || Modifier.isStatic(modifiers) : !includeSuper) return false;
+            // package private members only reach subclasses in the same package
+            if ((modifiers & (Modifier.PUBLIC | Modifier.PROTECTED)) == 0 && !isSamePackage(owner, declaringClass.reflect)) return false;
+            return owner.isAssignableFrom(declaringClass.reflect);
         }
 
         @NonNull
@@ -1292,6 +2355,14 @@ final class HookBuilderImpl implements HookBuilder {
             return (Base) this;
         }
 
+        @NonNull
+        @Override
+        public final Base setDeclaringPackage(@NonNull String packageName) {
+            ensureNotFinalized();
+            this.declaringPackage = packageName.endsWith(".") ? packageName : packageName + ".";
+            return (Base) this;
+        }
+
         @NonNull
         @Override
         public final Base setIsSynthetic(boolean isSynthetic) {
@@ -1333,21 +2404,55 @@ final class HookBuilderImpl implements HookBuilder {
             if (type != null) type.rootMatcher.setNonPending();
         }
 
+        @Nullable
+        @Override
+        protected List<Object> fingerprint(@NonNull Canonicalizer canonicalizer) {
+            final var fingerprint = super.fingerprint(canonicalizer);
+            if (fingerprint == null) return null;
+            Collections.addAll(fingerprint, canonicalizer.of(name), canonicalizer.of(type));
+            return fingerprint;
+        }
+
         @NonNull
         @Override
         protected FieldLazySequenceImpl onBuild() {
             if (key != null) keyedFieldMatchers.put(key, this);
-            if (rootMatcher != this) rootFieldMatchers.add(this);
+            if (rootMatcher == this) rootFieldMatchers.add(this);
             return new FieldLazySequenceImpl(rootMatcher);
         }
 
         @Override
-        protected boolean doMatch(@NonNull Field field) {
-            if (!super.doMatch(field)) return false;
-            if (name != null && !name.test(field.getName())) return false;
-            if (type == null) return true;
-            var typeMatch = type.match.get();
-            return typeMatch != null && typeMatch.reflect == field.getType();
+        protected void addChecks(@NonNull List<Check<Field>> checks) {
+            super.addChecks(checks);
+            if (name != null) checks.add(new Check<Field>(nameCheck) {
+                @Override
+                boolean test(@NonNull Field field) {
+                    //noinspection ConstantConditions
+                    return name.test(field.getName());
+                }
+
+                @Override
+                boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+                    //noinspection ConstantConditions
+                    return name.test(snapshot.names[index]);
+                }
+            });
+            if (type != null) checks.add(new Check<Field>(flagCheck) {
+                @Override
+                boolean test(@NonNull Field field) {
+                    //noinspection ConstantConditions
+                    var typeMatch = type.match.get();
+                    return typeMatch != null && typeMatch.reflect == field.getType();
+                }
+
+                @Override
+                boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+                    //noinspection ConstantConditions
+                    var typeMatch = type.match.get();
+                    //noinspection ConstantConditions
+                    return typeMatch != null && typeMatch.reflect == snapshot.types[index];
+                }
+            });
         }
 
         @NonNull
@@ -1427,6 +2532,65 @@ final class HookBuilderImpl implements HookBuilder {
             super(rootMatcher, matchFirst);
         }
 
+        protected final boolean hasDexPredicates() {
+            return referredStrings != null || assignedFields != null || accessedFields != null || invokedMethods != null || invokedConstructors != null || opcodes != null;
+        }
+
+        protected abstract boolean acceptsDexMethod(int accessFlags);
+
+        @NonNull
+        protected abstract Reflect loadDexMethod(@NonNull String signature) throws ClassNotFoundException, NoSuchMethodException;
+
+        // sorted methods of the dex passing the indexed predicates
+        @NonNull
+        protected final int[] doMatchIndex(@NonNull DexIndex index) {
+            var set = PostingSet.ALL;
+            if (referredStrings != null) set = referredStrings.evaluate(index);
+            if (invokedMethods != null && (set.complement || set.ids.length > 0)) {
+                set = set.and(invokedMethods.evaluate(index, index::getCallers));
+            }
+            if (invokedConstructors != null && (set.complement || set.ids.length > 0)) {
+                set = set.and(invokedConstructors.evaluate(index, index::getCallers));
+            }
+            if (accessedFields != null && (set.complement || set.ids.length > 0)) {
+                set = set.and(accessedFields.evaluate(index, index::getReaders));
+            }
+            if (assignedFields != null && (set.complement || set.ids.length > 0)) {
+                set = set.and(assignedFields.evaluate(index, index::getWriters));
+            }
+            final var universe = set.materialize(index.getMethodsWithBody());
+            final var res = new IntList(universe.length);
+            for (final var method : universe) {
+                if (acceptsDexMethod(index.getMethodAccessFlags(method))) res.add(method);
+            }
+            return res.toArray();
+        }
+
+        // members of the hits on one dex, loaded while its index is open
+        @NonNull
+        protected final List<Reflect> loadDexHits(@NonNull DexIndex index, @Nullable int[] methods) {
+            if (methods == null) return Collections.emptyList();
+            final var res = new ArrayList<Reflect>(methods.length);
+            for (final var method : methods) {
+                try {
+                    res.add(loadDexMethod(index.getMethodSignature(method)));
+                } catch (ClassNotFoundException | NoSuchMethodException e) {
+                    if (exceptionHandler != null && !exceptionHandler.test(e)) {
+                        break;
+                    }
+                }
+            }
+            return res;
+        }
+
+        protected final void doMatchDex(@NonNull List<?>[] hits) {
+            final var candidates = new ArrayList<Reflect>();
+            for (final var members : hits) {
+                if (members != null) candidates.addAll((List<Reflect>) members);
+            }
+            doMatch(candidates);
+        }
+
         @Override
         protected void setNonPending() {
             super.setNonPending();
@@ -1437,18 +2601,39 @@ final class HookBuilderImpl implements HookBuilder {
             if (invokedConstructors != null) invokedConstructors.setNonPending();
         }
 
+        @CallSuper
+        @Nullable
         @Override
-        protected boolean doMatch(@NonNull Reflect reflect) {
-            if (!super.doMatch(reflect)) return false;
-            final int parameterCount;
-            if (reflect instanceof Method) {
-                parameterCount = ((Method) reflect).getParameterTypes().length;
-            } else if (reflect instanceof Constructor) {
-                parameterCount = ((Constructor<?>) reflect).getParameterTypes().length;
-            } else {
-                return false;
-            }
-            return this.parameterCount == -1 || this.parameterCount == parameterCount;
+        protected List<Object> fingerprint(@NonNull Canonicalizer canonicalizer) {
+            final var fingerprint = super.fingerprint(canonicalizer);
+            if (fingerprint == null) return null;
+            Collections.addAll(fingerprint, parameterCount, canonicalizer.of(parameterTypes), canonicalizer.of(parameters), canonicalizer.of(referredStrings), canonicalizer.of(assignedFields), canonicalizer.of(accessedFields), canonicalizer.of(invokedMethods), canonicalizer.of(invokedConstructors), canonicalizer.of(opcodes));
+            return fingerprint;
+        }
+
+        @CallSuper
+        @Override
+        protected void addChecks(@NonNull List<Check<Reflect>> checks) {
+            super.addChecks(checks);
+            if (parameterCount != -1) checks.add(new Check<Reflect>(flagCheck) {
+                @Override
+                boolean test(@NonNull Reflect reflect) {
+                    final int parameterCount;
+                    if (reflect instanceof Method) {
+                        parameterCount = ((Method) reflect).getParameterTypes().length;
+                    } else if (reflect instanceof Constructor) {
+                        parameterCount = ((Constructor<?>) reflect).getParameterTypes().length;
+                    } else {
+                        return false;
+                    }
+                    return ExecutableMatcherImpl.this.parameterCount == parameterCount;
+                }
+
+                @Override
+                boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+                    return parameterCount == snapshot.parameterCounts[index];
+                }
+            });
         }
 
         @NonNull
@@ -1524,28 +2709,8 @@ final class HookBuilderImpl implements HookBuilder {
             ensureNotFinalized();
             dexAnalysis = true;
             if (opcodes.length == 0) return (Base) this;
-            // prepare for KMP
-            int M = opcodes.length;
-            byte[] lps = new byte[M];
-            int l = 0;
-            int i = 1;
-            while (i < M) {
-                if (opcodes[i] == opcodes[l]) {
-                    l++;
-                    lps[i] = (byte) l;
-                    i++;
-                } else {
-                    if (l != 0) {
-                        l = lps[l - 1];
-                    } else {
-                        lps[i] = 0;
-                        i++;
-                    }
-                }
-            }
-            this.opcodes = new byte[2 * M];
-            System.arraycopy(opcodes, 0, this.opcodes, 0, M);
-            System.arraycopy(lps, 0, this.opcodes, M, M);
+            // matched together with the other patterns by OpcodeAutomaton
+            this.opcodes = opcodes.clone();
             return (Base) this;
         }
 
@@ -1644,29 +2809,113 @@ final class HookBuilderImpl implements HookBuilder {
             super(rootMatcher, matchFirst);
         }
 
+        // a method overridden by another match is not a member of the declaring class on its own;
+        // methods of the same class are all kept, a covariant override has a bridge next to it
+        @NonNull
+        @Override
+        protected List<Method> distinct(@NonNull List<Method> matches) {
+            if (declaringClass == null || !includeSuper && !includeInterface || matches.size() < 2) return matches;
+            final var bySignature = new HashMap<List<Object>, List<Method>>();
+            for (final var method : matches) {
+                final var signature = signatureOf(method);
+                var methods = bySignature.get(signature);
+                if (methods == null) bySignature.put(signature, methods = new ArrayList<>(1));
+                methods.add(method);
+            }
+            if (bySignature.size() == matches.size()) return matches;
+            final var distinct = new ArrayList<Method>(bySignature.size());
+            for (final var method : matches) {
+                final var owner = method.getDeclaringClass();
+                var overridden = false;
+                //noinspection ConstantConditions
+                for (final var other : bySignature.get(signatureOf(method))) {
+                    final var otherOwner = other.getDeclaringClass();
+                    if (otherOwner != owner && owner.isAssignableFrom(otherOwner)) {
+                        overridden = true;
+                        break;
+                    }
+                }
+                if (!overridden) distinct.add(method);
+            }
+            return distinct;
+        }
+
+        @NonNull
+        private List<Object> signatureOf(@NonNull Method method) {
+            return Arrays.asList(method.getName(), Arrays.asList(method.getParameterTypes()));
+        }
+
         @Override
         protected void setNonPending() {
             super.setNonPending();
             if (returnType != null) returnType.rootMatcher.setNonPending();
         }
 
+        @Nullable
+        @Override
+        protected List<Object> fingerprint(@NonNull Canonicalizer canonicalizer) {
+            final var fingerprint = super.fingerprint(canonicalizer);
+            if (fingerprint == null) return null;
+            Collections.addAll(fingerprint, canonicalizer.of(name), canonicalizer.of(returnType));
+            return fingerprint;
+        }
+
         @Override
-        protected boolean doMatch(@NonNull Method method) {
-            if (!super.doMatch(method)) return false;
-            if (name != null && !name.test(method.getName())) return false;
-            if (returnType == null) return true;
-            var returnTypeMatch = returnType.match.get();
-            return returnTypeMatch != null && returnTypeMatch.reflect == method.getReturnType();
+        protected void addChecks(@NonNull List<Check<Method>> checks) {
+            super.addChecks(checks);
+            if (name != null) checks.add(new Check<Method>(nameCheck) {
+                @Override
+                boolean test(@NonNull Method method) {
+                    //noinspection ConstantConditions
+                    return name.test(method.getName());
+                }
+
+                @Override
+                boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+                    //noinspection ConstantConditions
+                    return name.test(snapshot.names[index]);
+                }
+            });
+            if (returnType != null) checks.add(new Check<Method>(flagCheck) {
+                @Override
+                boolean test(@NonNull Method method) {
+                    //noinspection ConstantConditions
+                    var returnTypeMatch = returnType.match.get();
+                    return returnTypeMatch != null && returnTypeMatch.reflect == method.getReturnType();
+                }
+
+                @Override
+                boolean test(@NonNull MemberSnapshot<?> snapshot, int index) {
+                    //noinspection ConstantConditions
+                    var returnTypeMatch = returnType.match.get();
+                    //noinspection ConstantConditions
+                    return returnTypeMatch != null && returnTypeMatch.reflect == snapshot.types[index];
+                }
+            });
         }
 
         @NonNull
         @Override
         protected MethodLazySequenceImpl onBuild() {
             if (key != null) keyedMethodMatchers.put(key, this);
-            if (rootMatcher != this) rootMethodMatchers.add(this);
+            if (rootMatcher == this) {
+                if (hasDexPredicates()) dexExecutableMatchers.add(this);
+                else rootMethodMatchers.add(this);
+            }
             return new MethodLazySequenceImpl(rootMatcher);
         }
 
+        @Override
+        protected boolean acceptsDexMethod(int accessFlags) {
+            return (accessFlags & DexIndex.ACC_CONSTRUCTOR) == 0;
+        }
+
+        @NonNull
+        @Override
+        protected Method loadDexMethod(@NonNull String signature) throws ClassNotFoundException, NoSuchMethodException {
+            return reflector.loadMethod(signature);
+        }
+
         @NonNull
         @Override
         public MethodMatcher setName(@NonNull StringMatch name) {
@@ -1728,8 +2977,23 @@ final class HookBuilderImpl implements HookBuilder {
         @Override
         protected ConstructorLazySequenceImpl onBuild() {
             if (key != null) keyedConstructorMatchers.put(key, this);
+            if (rootMatcher == this) {
+                if (hasDexPredicates()) dexExecutableMatchers.add(this);
+                else rootConstructorMatchers.add(this);
+            }
             return new ConstructorLazySequenceImpl(rootMatcher);
         }
+
+        @Override
+        protected boolean acceptsDexMethod(int accessFlags) {
+            return (accessFlags & DexIndex.ACC_CONSTRUCTOR) != 0 && (accessFlags & Modifier.STATIC) == 0;
+        }
+
+        @NonNull
+        @Override
+        protected Constructor<?> loadDexMethod(@NonNull String signature) throws ClassNotFoundException, NoSuchMethodException {
+            return reflector.loadConstructor(signature);
+        }
     }
 
     private final class StringMatcherImpl extends BaseMatcherImpl<StringMatcherImpl, String, DexParser.StringId> {
@@ -1889,20 +3153,76 @@ final class HookBuilderImpl implements HookBuilder {
                 } else if (leftMatch && operator == '|') {
                     return true;
                 }
-                return operandTest(binaryOperands.left, set, operator);
+                return operandTest(binaryOperands.right, set, operator);
             } else if (operands instanceof BaseSyntaxImpl.UnaryOperands) {
                 UnaryOperands unaryOperands = (UnaryOperands) operands;
                 final var operator = unaryOperands.operator;
                 boolean match = operandTest(unaryOperands.operand, set, operator);
                 if (unaryOperands.operator == '!' || unaryOperands.operator == '-') {
                     return !match;
-                } else if (unaryOperands.operator == '+') {
+                } else {
                     return match;
                 }
             }
             return false;
         }
 
+        @NonNull
+        private PostingSet evaluate(@NonNull Operand operand, @NonNull DexIndex index, @NonNull DexIndex.Postings related, char operator) {
+            if (operand.value instanceof ReflectMatchImpl) {
+                final var id = ((ReflectMatchImpl<?, ?, Reflect, ?, ?, ?>) operand.value).getDexId(index);
+                if (id == DexParser.NO_INDEX) return PostingSet.EMPTY;
+                return new PostingSet(related.get(id), false);
+            } else if (operand.value instanceof LazySequenceImpl) {
+                final var ids = ((LazySequenceImpl<?, ?, Reflect, ?, ?, ?, ?>) operand.value).getDexIds(index);
+                if (ids.length == 0) return PostingSet.EMPTY;
+                if (operator == '^') {
+                    var res = related.get(ids[0]);
+                    for (var i = 1; i < ids.length && res.length > 0; ++i) {
+                        res = PostingSet.intersect(res, related.get(ids[i]));
+                    }
+                    return new PostingSet(res, false);
+                } else if (operator == 'v') {
+                    var res = new int[0];
+                    for (final var id : ids) {
+                        res = PostingSet.union(res, related.get(id));
+                    }
+                    return new PostingSet(res, false);
+                }
+                return PostingSet.EMPTY;
+            } else if (operand.value instanceof ReflectSyntaxImpl) {
+                return ((ReflectSyntaxImpl<?, ?, Reflect>) operand.value).evaluate(index, related);
+            }
+            return PostingSet.EMPTY;
+        }
+
+        // same as test(HashSet) for every method of the dex at once on the ids,
+        // where related maps a match id to the sorted methods whose set contains it
+        @NonNull
+        private PostingSet evaluate(@NonNull DexIndex index, @NonNull DexIndex.Postings related) {
+            if (operands instanceof BaseSyntaxImpl.BinaryOperands) {
+                BinaryOperands binaryOperands = (BinaryOperands) operands;
+                final var operator = binaryOperands.operator;
+                final var left = evaluate(binaryOperands.left, index, related, operator);
+                if (operator == '&') {
+                    if (!left.complement && left.ids.length == 0) return left;
+                    return left.and(evaluate(binaryOperands.right, index, related, operator));
+                } else if (operator == '|') {
+                    return left.or(evaluate(binaryOperands.right, index, related, operator));
+                }
+            } else if (operands instanceof BaseSyntaxImpl.UnaryOperands) {
+                UnaryOperands unaryOperands = (UnaryOperands) operands;
+                final var operator = unaryOperands.operator;
+                final var match = evaluate(unaryOperands.operand, index, related, operator);
+                if (operator == '!' || operator == '-') {
+                    return match.not();
+                } else {
+                    return match;
+                }
+            }
+            return PostingSet.EMPTY;
+        }
+
         private void addObserver(@NonNull Operand operand, @NonNull BaseObserver<?> observer, @Nullable AtomicInteger count) {
             if (operand.value instanceof ReflectMatchImpl) {
                 ((ReflectMatchImpl<?, ?, Reflect, ?, ?, ?>) operand.value).addObserver((BaseObserver<Reflect>) observer);
@@ -1949,6 +3269,27 @@ final class HookBuilderImpl implements HookBuilder {
             }
         }
 
+        private void collectRootMatchers(@NonNull Operand operand, @NonNull List<ReflectMatcherImpl<?, ?, ?, ?, ?>> out) {
+            if (operand.value instanceof ReflectMatchImpl) {
+                out.add(((ReflectMatchImpl<?, ?, Reflect, ?, ?, ?>) operand.value).rootMatcher);
+            } else if (operand.value instanceof LazySequenceImpl) {
+                out.add(((LazySequenceImpl<?, ?, Reflect, ?, ?, ?, ?>) operand.value).rootMatcher);
+            } else {
+                ((ReflectSyntaxImpl<?, ?, Reflect>) operand.value).collectRootMatchers(out);
+            }
+        }
+
+        void collectRootMatchers(@NonNull List<ReflectMatcherImpl<?, ?, ?, ?, ?>> out) {
+            if (operands instanceof BaseSyntaxImpl.BinaryOperands) {
+                BinaryOperands binaryOperands = (BinaryOperands) operands;
+                collectRootMatchers(binaryOperands.left, out);
+                collectRootMatchers(binaryOperands.right, out);
+            } else if (operands instanceof BaseSyntaxImpl.UnaryOperands) {
+                UnaryOperands unaryOperands = (UnaryOperands) operands;
+                collectRootMatchers(unaryOperands.operand, out);
+            }
+        }
+
         private void setNonPending(@NonNull Operand operand) {
             if (operand.value instanceof ReflectMatchImpl) {
                 ((ReflectMatchImpl<?, ?, Reflect, ?, ?, ?>) operand.value).rootMatcher.setNonPending();
@@ -2007,6 +3348,74 @@ final class HookBuilderImpl implements HookBuilder {
             return false;
         }
 
+        @NonNull
+        private PostingSet evaluate(@NonNull Operand operand, @NonNull DexIndex index) {
+            if (operand.value instanceof StringMatchImpl) {
+                final var match = (StringMatchImpl) operand.value;
+                return new PostingSet(index.getMethodsReferringStrings(match.getDexStart(index.dexId), match.getDexEnd(index.dexId)), false);
+            } else if (operand.value instanceof StringSyntaxImpl) {
+                return ((StringSyntaxImpl) operand.value).evaluate(index);
+            }
+            return PostingSet.EMPTY;
+        }
+
+        // string ranges of a union of plain string matches, or false if the operand is anything else
+        private boolean collectRanges(@NonNull Operand operand, int dexId, @NonNull IntList ranges) {
+            if (operand.value instanceof StringMatchImpl) {
+                final var match = (StringMatchImpl) operand.value;
+                final int start = match.getDexStart(dexId), end = match.getDexEnd(dexId);
+                if (start < end) {
+                    ranges.add(start);
+                    ranges.add(end);
+                }
+                return true;
+            } else if (operand.value instanceof StringSyntaxImpl) {
+                return ((StringSyntaxImpl) operand.value).collectRanges(dexId, ranges);
+            }
+            return false;
+        }
+
+        private boolean collectRanges(int dexId, @NonNull IntList ranges) {
+            if (operands instanceof BaseSyntaxImpl.BinaryOperands) {
+                BinaryOperands binaryOperands = (BinaryOperands) operands;
+                return binaryOperands.operator == '|' && collectRanges(binaryOperands.left, dexId, ranges) && collectRanges(binaryOperands.right, dexId, ranges);
+            } else if (operands instanceof BaseSyntaxImpl.UnaryOperands) {
+                UnaryOperands unaryOperands = (UnaryOperands) operands;
+                return unaryOperands.operator == '+' && collectRanges(unaryOperands.operand, dexId, ranges);
+            }
+            return false;
+        }
+
+        // methods of the dex whose referred strings satisfy this syntax, by merging the posting lists
+        @NonNull
+        private PostingSet evaluate(@NonNull DexIndex index) {
+            // a union of string matches is merged on the string ranges and looked up once
+            final var ranges = new IntList();
+            if (collectRanges(index.dexId, ranges)) {
+                return new PostingSet(index.getMethodsReferringStrings(ranges.toArray()), false);
+            }
+            if (operands instanceof BaseSyntaxImpl.BinaryOperands) {
+                BinaryOperands binaryOperands = (BinaryOperands) operands;
+                char operator = binaryOperands.operator;
+                var left = evaluate(binaryOperands.left, index);
+                if (operator == '&') {
+                    if (!left.complement && left.ids.length == 0) return left;
+                    return left.and(evaluate(binaryOperands.right, index));
+                } else if (operator == '|') {
+                    return left.or(evaluate(binaryOperands.right, index));
+                }
+            } else if (operands instanceof BaseSyntaxImpl.UnaryOperands) {
+                UnaryOperands unaryOperands = (UnaryOperands) operands;
+                var match = evaluate(unaryOperands.operand, index);
+                if (unaryOperands.operator == '!' || unaryOperands.operator == '-') {
+                    return match.not();
+                } else if (unaryOperands.operator == '+') {
+                    return match;
+                }
+            }
+            return PostingSet.EMPTY;
+        }
+
         private boolean test(TreeSetView<String> set) {
             if (operands instanceof BaseSyntaxImpl.BinaryOperands) {
                 BinaryOperands binaryOperands = (BinaryOperands) operands;
@@ -2036,12 +3445,11 @@ final class HookBuilderImpl implements HookBuilder {
         @NonNull
         protected final ReflectMatcherImpl<?, ?, ?, ?, ?> rootMatcher;
         @NonNull
-        protected final AtomicReference<int[][]> dexMatches = new AtomicReference<>(null);
+        protected final AtomicReference<AtomicReferenceArray<int[]>> dexMatches = new AtomicReference<>(null);
         @NonNull
         protected final AtomicReference<Collection<Reflect>> matches = new AtomicReference<>(null);
-        @GuardedBy("this")
         @NonNull
-        private final Set<BaseObserver<Collection<Reflect>>> observers = new HashSet<>();
+        private final ObserverList<Collection<Reflect>> observers = new ObserverList<>();
         @GuardedBy("this")
         @NonNull
         private final Queue<LazySequenceImpl<Base, Match, Reflect, Matcher, MatchImpl, MatcherImpl, DexId>> missReplacements = new LinkedList<>();
@@ -2122,7 +3530,9 @@ final class HookBuilderImpl implements HookBuilder {
         @NonNull
         @Override
         public final Base substituteIfMiss(@NonNull Supplier<Base> substitute) {
-            missReplacements.add((LazySequenceImpl<Base, Match, Reflect, Matcher, MatchImpl, MatcherImpl, DexId>) substitute.get());
+            final var replacement = (LazySequenceImpl<Base, Match, Reflect, Matcher, MatchImpl, MatcherImpl, DexId>) substitute.get();
+            replacement.rootMatcher.substitute = true;
+            missReplacements.add(replacement);
             return (Base) this;
         }
 
@@ -2131,6 +3541,7 @@ final class HookBuilderImpl implements HookBuilder {
         public final Base matchIfMiss(@NonNull Consumer<Matcher> consumer) {
             final var m = newMatcher(false);
             consumer.accept((Matcher) m);
+            m.substitute = true;
             missReplacements.add((LazySequenceImpl<Base, Match, Reflect, Matcher, MatchImpl, MatcherImpl, DexId>) m.build());
             return (Base) this;
         }
@@ -2158,24 +3569,46 @@ final class HookBuilderImpl implements HookBuilder {
             return (Base) this;
         }
 
-        protected final synchronized void match(@NonNull Collection<Reflect> matches) {
-            if (!this.matches.compareAndSet(null, matches)) return;
-            final Runnable runnable = () -> {
-                for (final var observer : observers) {
-                    observer.update(matches);
+        protected final void match(@NonNull Collection<Reflect> matches) {
+            if (!matches.iterator().hasNext()) {
+                // a miss is only published once no replacement is left
+                final LazySequenceImpl<Base, Match, Reflect, Matcher, MatchImpl, MatcherImpl, DexId> replacement;
+                synchronized (this) {
+                    replacement = this.matches.get() == null ? missReplacements.poll() : null;
                 }
-            };
-            if (matches.iterator().hasNext()) {
-                matchExecutor.submit(runnable);
-            } else {
-                final var replacement = missReplacements.poll();
                 if (replacement != null) {
                     replacement.rootMatcher.setNonPending();
                     replacement.addObserver((ListObserver<Reflect>) this::match);
-                } else {
-                    matchExecutor.submit(runnable);
+                    return;
+                }
+            }
+            if (!this.matches.compareAndSet(null, matches)) return;
+            final var observers = this.observers.seal();
+            notifier.post(observers.length, () -> {
+                for (final var observer : observers) {
+                    observer.update(matches);
                 }
+            });
+        }
+
+        // sorted ids of the matches in the dex, NO_INDEX for matches absent from it; computed per dex on its first read
+        @NonNull
+        protected final int[] getDexIds(@NonNull DexIndex index) {
+            final var matches = this.matches.get();
+            final var dexSlots = HookBuilderImpl.this.dexSlots;
+            if (matches == null || dexSlots == null || index.dexId >= dexSlots.length) return new int[0];
+            final var dexIds = AtomicHelper.updateIfNullAndGet(dexMatches, () -> new AtomicReferenceArray<>(dexSlots.length));
+            var ids = dexIds.get(index.dexId);
+            if (ids != null) return ids;
+            ids = new int[matches.size()];
+            var i = 0;
+            for (final var match : matches) {
+                ids[i++] = findDexId(index, match);
             }
+            Arrays.sort(ids);
+            // readers racing on the same dex compute the same ids
+            dexIds.set(index.dexId, ids);
+            return ids;
         }
 
         @NonNull
@@ -2184,13 +3617,13 @@ final class HookBuilderImpl implements HookBuilder {
         @NonNull
         protected abstract MatcherImpl newMatcher(boolean matchFirst);
 
-        protected final synchronized void addObserver(@NonNull BaseObserver<Collection<Reflect>> observer) {
-            observers.add(observer);
-            var matches = this.matches.get();
-            if (matches != null) observer.update(matches);
+        protected final void addObserver(@NonNull BaseObserver<Collection<Reflect>> observer) {
+            if (observers.add(observer)) return;
+            // published before, matches is set ahead of sealing
+            observer.update(matches.get());
         }
 
-        protected final synchronized void removeObserver(@NonNull BaseObserver<Collection<Reflect>> observer) {
+        protected final void removeObserver(@NonNull BaseObserver<Collection<Reflect>> observer) {
             observers.remove(observer);
         }
     }
@@ -2573,10 +4006,7 @@ final class HookBuilderImpl implements HookBuilder {
         @NonNull
         protected final ReflectMatcherImpl<?, ?, ?, ?, ?> rootMatcher;
         @NonNull
-        protected final AtomicReference<int[]> dexMatch = new AtomicReference<>(null);
-        @GuardedBy("this")
-        @NonNull
-        private final Set<BaseObserver<Reflect>> observers = new HashSet<>();
+        private final ObserverList<Reflect> observers = new ObserverList<>();
         @GuardedBy("this")
         @NonNull
         private final Queue<ReflectMatchImpl<Self, Base, Reflect, Matcher, MatcherImpl, DexId>> missReplacements = new LinkedList<>();
@@ -2626,6 +4056,7 @@ final class HookBuilderImpl implements HookBuilder {
         @Override
         public final synchronized Base substituteIfMiss(@NonNull Supplier<Base> replacement) {
             final var re = (Self) replacement.get();
+            re.rootMatcher.substitute = true;
             missReplacements.add(re);
             return (Base) this;
         }
@@ -2636,6 +4067,7 @@ final class HookBuilderImpl implements HookBuilder {
             MatcherImpl m = newFirstMatcher();
             consumer.accept((Matcher) m);
             m.pending = true;
+            m.substitute = true;
             missReplacements.add((ReflectMatchImpl<Self, Base, Reflect, Matcher, MatcherImpl, DexId>) m.build().first());
             return (Base) this;
         }
@@ -2667,39 +4099,48 @@ final class HookBuilderImpl implements HookBuilder {
             return (Base) this;
         }
 
-        protected final synchronized void addObserver(BaseObserver<Reflect> observer) {
-            observers.add(observer);
-            final var m = match.get();
-            if (m != null) observer.update(m.reflect);
+        protected final void addObserver(BaseObserver<Reflect> observer) {
+            if (observers.add(observer)) return;
+            // published before, match is set ahead of sealing
+            observer.update(match.get().reflect);
         }
 
-        protected final synchronized void removeObserver(BaseObserver<Reflect> observer) {
+        protected final void removeObserver(BaseObserver<Reflect> observer) {
             observers.remove(observer);
         }
 
-        protected final synchronized void match(@Nullable Reflect match) {
-            if (!this.match.compareAndSet(null, new ReflectWrapper(match))) return;
-            Runnable runnable = () -> {
-                for (var observer : observers) {
-                    observer.update(match);
-                }
-            };
+        protected final void match(@Nullable Reflect match) {
             if (match != null) {
                 if (match instanceof AccessibleObject) {
                     ((AccessibleObject) match).setAccessible(true);
                 } else if (match instanceof ParameterImpl) {
                     ((AccessibleObject) ((ParameterImpl) match).getDeclaringExecutable()).setAccessible(true);
                 }
-                matchExecutor.submit(runnable);
             } else {
-                final var replacement = missReplacements.poll();
+                // a miss is only published once no replacement is left
+                final ReflectMatchImpl<Self, Base, Reflect, Matcher, MatcherImpl, DexId> replacement;
+                synchronized (this) {
+                    replacement = this.match.get() == null ? missReplacements.poll() : null;
+                }
                 if (replacement != null) {
                     replacement.rootMatcher.setNonPending();
                     replacement.addObserver((ItemObserver<Reflect>) this::match);
-                } else {
-                    matchExecutor.submit(runnable);
+                    return;
                 }
             }
+            if (!this.match.compareAndSet(null, new ReflectWrapper(match))) return;
+            final var observers = this.observers.seal();
+            notifier.post(observers.length, () -> {
+                for (final var observer : observers) {
+                    observer.update(match);
+                }
+            });
+        }
+
+        // id of the match in the dex, NO_INDEX if absent from it
+        protected final int getDexId(@NonNull DexIndex index) {
+            final var match = this.match.get();
+            return match == null ? DexParser.NO_INDEX : findDexId(index, match.reflect);
         }
 
         @NonNull
@@ -2926,7 +4367,11 @@ final class HookBuilderImpl implements HookBuilder {
         @Override
         public final FieldLazySequence getAssignedFields() {
             dexAnalysis = true;
-            return null;
+            final var m = new FieldLazySequenceImpl(rootMatcher);
+            final var observer = new DexObserver(this);
+            dexObservers.add(observer);
+            addObserver((ItemObserver<Reflect>) result -> readDexIndexes(observer, dexIndexes -> m.match(getFields(result, dexIndexes, true))));
+            return m;
         }
 
         @DexAnalysis
@@ -2934,7 +4379,11 @@ final class HookBuilderImpl implements HookBuilder {
         @Override
         public final FieldLazySequence getAccessedFields() {
             dexAnalysis = true;
-            return null;
+            final var m = new FieldLazySequenceImpl(rootMatcher);
+            final var observer = new DexObserver(this);
+            dexObservers.add(observer);
+            addObserver((ItemObserver<Reflect>) result -> readDexIndexes(observer, dexIndexes -> m.match(getFields(result, dexIndexes, false))));
+            return m;
         }
 
         @DexAnalysis
@@ -2942,7 +4391,11 @@ final class HookBuilderImpl implements HookBuilder {
         @Override
         public final MethodLazySequence getInvokedMethods() {
             dexAnalysis = true;
-            return null;
+            final var m = new MethodLazySequenceImpl(rootMatcher);
+            final var observer = new DexObserver(this);
+            dexObservers.add(observer);
+            addObserver((ItemObserver<Reflect>) result -> readDexIndexes(observer, dexIndexes -> m.match(getCallees(result, dexIndexes, false))));
+            return m;
         }
 
         @DexAnalysis
@@ -2950,7 +4403,70 @@ final class HookBuilderImpl implements HookBuilder {
         @Override
         public final ConstructorLazySequence getInvokedConstructors() {
             dexAnalysis = true;
-            return null;
+            final var m = new ConstructorLazySequenceImpl(rootMatcher);
+            final var observer = new DexObserver(this);
+            dexObservers.add(observer);
+            addObserver((ItemObserver<Reflect>) result -> readDexIndexes(observer, dexIndexes -> m.match(getCallees(result, dexIndexes, true))));
+            return m;
+        }
+
+        // run the reader once every dex is ready, on no dex at all outside of the dex analysis
+        private void readDexIndexes(@NonNull DexObserver observer, @NonNull Consumer<DexIndex[]> reader) {
+            final var dexSlots = HookBuilderImpl.this.dexSlots;
+            if (dexSlots == null) {
+                reader.accept(new DexIndex[0]);
+                return;
+            }
+            whenDexesReady(dexSlots, dexIndexes -> {
+                try {
+                    reader.accept(dexIndexes);
+                } finally {
+                    releaseDexSlots(dexSlots, observer.reader);
+                }
+            });
+        }
+
+        // callees of the match from the call graph of each dex
+        @NonNull
+        private <T extends Member> List<T> getCallees(@Nullable Reflect result, @NonNull DexIndex[] dexIndexes, boolean constructor) {
+            if (result == null) return Collections.emptyList();
+            final var callees = new LinkedHashSet<T>();
+            for (final var index : dexIndexes) {
+                if (index == null) continue;
+                for (final var callee : index.getCallees(findDexId(index, result))) {
+                    if (index.isConstructor(callee) != constructor) continue;
+                    final var signature = index.getMethodSignature(callee);
+                    try {
+                        callees.add((T) (constructor ? reflector.loadConstructor(signature) : reflector.loadMethod(signature)));
+                    } catch (ClassNotFoundException | NoSuchMethodException e) {
+                        if (exceptionHandler != null && !exceptionHandler.test(e)) {
+                            return new ArrayList<>(callees);
+                        }
+                    }
+                }
+            }
+            return new ArrayList<>(callees);
+        }
+
+        // fields read or written by the match from the field index of each dex
+        @NonNull
+        private List<Field> getFields(@Nullable Reflect result, @NonNull DexIndex[] dexIndexes, boolean assigned) {
+            if (result == null) return Collections.emptyList();
+            final var fields = new LinkedHashSet<Field>();
+            for (final var index : dexIndexes) {
+                if (index == null) continue;
+                final var method = findDexId(index, result);
+                for (final var field : assigned ? index.getWrittenFields(method) : index.getReadFields(method)) {
+                    try {
+                        fields.add(reflector.loadField(index.getFieldSignature(field)));
+                    } catch (ClassNotFoundException | NoSuchFieldException e) {
+                        if (exceptionHandler != null && !exceptionHandler.test(e)) {
+                            return new ArrayList<>(fields);
+                        }
+                    }
+                }
+            }
+            return new ArrayList<>(fields);
         }
     }
 
@@ -3010,13 +4526,30 @@ final class HookBuilderImpl implements HookBuilder {
         @NonNull
         private final StringMatcherImpl matcher;
 
+        // [start, end) of the matched string ids of each dex, flattened
         @NonNull
-        private final AtomicReference<int[][]> dexMatches = new AtomicReference<>(null);
+        private final AtomicReference<int[]> dexRanges = new AtomicReference<>(null);
 
         private StringMatchImpl(@NonNull StringMatcherImpl matcher) {
             this.matcher = matcher;
         }
 
+        private void setDexRange(int dexCount, int dexId, int start, int end) {
+            final var ranges = AtomicHelper.updateIfNullAndGet(dexRanges, () -> new int[2 * dexCount]);
+            ranges[2 * dexId] = start;
+            ranges[2 * dexId + 1] = end;
+        }
+
+        private int getDexStart(int dexId) {
+            final var ranges = dexRanges.get();
+            return ranges == null || 2 * dexId >= ranges.length ? 0 : ranges[2 * dexId];
+        }
+
+        private int getDexEnd(int dexId) {
+            final var ranges = dexRanges.get();
+            return ranges == null || 2 * dexId >= ranges.length ? 0 : ranges[2 * dexId + 1];
+        }
+
         @SuppressWarnings("BooleanMethodIsAlwaysInverted")
         private boolean test(@NonNull String value) {
             if (matcher.matchPrefix && !value.startsWith(matcher.pattern)) return false;
@@ -0,0 +1,89 @@
+package io.github.libxposed.helper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+// immutable flat view of the declared members of one kind of a class, taken once per build so that
+// matchers read modifiers, names and types from plain arrays instead of copying them out of reflection again
+final class MemberSnapshot<Reflect extends Member> {
+    @NonNull
+    final Class<?> declaringClass;
+    @NonNull
+    final String declaringName;
+    @NonNull
+    final Reflect[] members;
+    @NonNull
+    final int[] modifiers;
+    // null for constructors
+    @Nullable
+    final String[] names;
+    // field types or method return types, null for constructors
+    @Nullable
+    final Class<?>[] types;
+    // null for fields
+    @Nullable
+    final Class<?>[][] parameterTypes;
+    // -1 for fields
+    @NonNull
+    final int[] parameterCounts;
+
+    private MemberSnapshot(@NonNull Class<?> declaringClass, @NonNull Reflect[] members, @Nullable String[] names, @Nullable Class<?>[] types, @Nullable Class<?>[][] parameterTypes) {
+        this.declaringClass = declaringClass;
+        this.declaringName = declaringClass.getName();
+        this.members = members;
+        this.names = names;
+        this.types = types;
+        this.parameterTypes = parameterTypes;
+        modifiers = new int[members.length];
+        parameterCounts = new int[members.length];
+        for (var i = 0; i < members.length; ++i) {
+            modifiers[i] = members[i].getModifiers();
+            parameterCounts[i] = parameterTypes == null ? -1 : parameterTypes[i].length;
+        }
+    }
+
+    @NonNull
+    static MemberSnapshot<Field> ofFields(@NonNull Class<?> clazz) {
+        final var fields = clazz.getDeclaredFields();
+        final var names = new String[fields.length];
+        final var types = new Class<?>[fields.length];
+        for (var i = 0; i < fields.length; ++i) {
+            names[i] = fields[i].getName();
+            types[i] = fields[i].getType();
+        }
+        return new MemberSnapshot<>(clazz, fields, names, types, null);
+    }
+
+    @NonNull
+    static MemberSnapshot<Method> ofMethods(@NonNull Class<?> clazz) {
+        final var methods = clazz.getDeclaredMethods();
+        final var names = new String[methods.length];
+        final var types = new Class<?>[methods.length];
+        final var parameterTypes = new Class<?>[methods.length][];
+        for (var i = 0; i < methods.length; ++i) {
+            names[i] = methods[i].getName();
+            types[i] = methods[i].getReturnType();
+            parameterTypes[i] = methods[i].getParameterTypes();
+        }
+        return new MemberSnapshot<>(clazz, methods, names, types, parameterTypes);
+    }
+
+    @NonNull
+    static MemberSnapshot<Constructor<?>> ofConstructors(@NonNull Class<?> clazz) {
+        final var constructors = clazz.getDeclaredConstructors();
+        final var parameterTypes = new Class<?>[constructors.length][];
+        for (var i = 0; i < constructors.length; ++i) {
+            parameterTypes[i] = constructors[i].getParameterTypes();
+        }
+        return new MemberSnapshot<>(clazz, constructors, null, null, parameterTypes);
+    }
+
+    int size() {
+        return members.length;
+    }
+}
@@ -260,6 +260,15 @@ final class TreeSetView<T extends Comparable<T>> implements Set<T>, SortedSet<T>
         return new TreeSetView<>((T[]) c.toArray(new Comparable[0]), 0, c.size());
     }
 
+    T get(int index) {
+        return array[start + index];
+    }
+
+    // elements at the positions [from, to) of this view
+    TreeSetView<T> slice(int from, int to) {
+        return new TreeSetView<>(array, start + from, start + to);
+    }
+
     @Override
     public Comparator<? super T> comparator() {
         return null;
@@ -619,6 +628,10 @@ final class IdTreeSetView {
         return isEmpty() ? DexParser.NO_INDEX : array[end - 1];
     }
 
+    public int get(int index) {
+        return array[start + index];
+    }
+
     public int size() {
         return end - start;
     }
@@ -814,6 +827,56 @@ final class IdTreeSetView {
     }
 }
 
+// observers of a result published at most once: subscribing swaps in a larger immutable array with a cas,
+// and publishing swaps the array for a sealed marker so that late subscribers are served by the caller without a lock
+@SuppressWarnings("unchecked")
+final class ObserverList<T> {
+    private static final Object[] sealed = new Object[0];
+    @NonNull
+    private final AtomicReference<Object[]> observers = new AtomicReference<>(new Object[0]);
+
+    // false once sealed, then the caller has to update the observer with the published result itself
+    boolean add(@NonNull BaseObserver<T> observer) {
+        while (true) {
+            final var current = observers.get();
+            if (current == sealed) return false;
+            for (final var o : current) if (o == observer) return true;
+            final var next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = observer;
+            if (observers.compareAndSet(current, next)) return true;
+        }
+    }
+
+    void remove(@NonNull BaseObserver<T> observer) {
+        while (true) {
+            final var current = observers.get();
+            if (current == sealed) return;
+            var index = -1;
+            for (var i = 0; i < current.length; ++i) {
+                if (current[i] == observer) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) return;
+            final var next = new Object[current.length - 1];
+            System.arraycopy(current, 0, next, 0, index);
+            System.arraycopy(current, index + 1, next, index, next.length - index);
+            if (observers.compareAndSet(current, next)) return;
+        }
+    }
+
+    // the observers subscribed so far, each of them returned by exactly one call
+    @NonNull
+    @SuppressWarnings("unchecked")
+    BaseObserver<T>[] seal() {
+        final var current = observers.getAndSet(sealed);
+        final var res = (BaseObserver<T>[]) new BaseObserver<?>[current.length];
+        for (var i = 0; i < current.length; ++i) res[i] = (BaseObserver<T>) current[i];
+        return res;
+    }
+}
+
 class AtomicHelper {
     public static <T> T updateIfNullAndGet(AtomicReference<T> atomic, HookBuilder.Supplier<T> updateFunction) {
         T next = null;
@@ -826,3 +889,351 @@ class AtomicHelper {
         }
     }
 }
+
+// order of the predicates of a matcher by expected rejections per unit of cost, measured while matching;
+// counters are updated without synchronization, a lost update only skews the order a little and never changes
+// which candidates are accepted, since every predicate is still tested until one rejects
+final class PredicateOrder {
+    private final static int reorderInterval = 1024;
+    // halve the counters past this, so that the order follows the candidates of the current part of a scan
+    private final static long decayThreshold = 1 << 16;
+
+    @NonNull
+    private final int[] costs;
+    @NonNull
+    private final long[] tested;
+    @NonNull
+    private final long[] rejected;
+    @NonNull
+    private volatile int[] order;
+    private int evaluations = 0;
+
+    PredicateOrder(@NonNull int[] costs) {
+        this.costs = costs;
+        tested = new long[costs.length];
+        rejected = new long[costs.length];
+        order = rank();
+    }
+
+    @NonNull
+    int[] get() {
+        return order;
+    }
+
+    // the first count predicates of order were tested on a candidate, the last of them rejected it unless accepted
+    void record(@NonNull int[] order, int count, boolean accepted) {
+        for (var i = 0; i < count; ++i) ++tested[order[i]];
+        if (!accepted) ++rejected[order[count - 1]];
+        if (++evaluations % reorderInterval == 0) this.order = rank();
+    }
+
+    @NonNull
+    private int[] rank() {
+        final var size = costs.length;
+        final var scores = new double[size];
+        final var res = new int[size];
+        for (var i = 0; i < size; ++i) {
+            if (tested[i] > decayThreshold) {
+                tested[i] >>= 1;
+                rejected[i] >>= 1;
+            }
+            // one pseudo rejection in two tests, until something is observed
+            scores[i] = (rejected[i] + 1.0) / (tested[i] + 2.0) / costs[i];
+            var j = i;
+            while (j > 0 && scores[res[j - 1]] < scores[i]) {
+                res[j] = res[j - 1];
+                --j;
+            }
+            res[j] = i;
+        }
+        return res;
+    }
+}
+
+final class IntList {
+    private int[] array;
+    private int size = 0;
+
+    IntList() {
+        this(8);
+    }
+
+    IntList(int capacity) {
+        array = new int[Math.max(capacity, 1)];
+    }
+
+    void add(int value) {
+        if (size == array.length) {
+            array = Arrays.copyOf(array, size << 1);
+        }
+        array[size++] = value;
+    }
+
+    int get(int index) {
+        return array[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    @NonNull
+    int[] toArray() {
+        return Arrays.copyOf(array, size);
+    }
+}
+
+// aho-corasick automaton over opcode patterns, scanning an opcode stream once for all of them
+final class OpcodeAutomaton {
+    private static final int ALPHABET = 256;
+
+    // state * ALPHABET + opcode -> next state, with the failure links already folded in
+    @NonNull
+    private final int[] transitions;
+    // patterns ending at each state, including those reached by the failure links
+    @NonNull
+    private final int[][] outputs;
+    private final int patternCount;
+
+    OpcodeAutomaton(@NonNull byte[][] patterns) {
+        patternCount = patterns.length;
+        var capacity = 1;
+        for (final var pattern : patterns) capacity += pattern.length;
+        final var next = new int[capacity * ALPHABET];
+        Arrays.fill(next, -1);
+        final var out = new IntList[capacity];
+        var states = 1;
+        for (var i = 0; i < patterns.length; ++i) {
+            var state = 0;
+            for (final var opcode : patterns[i]) {
+                final var t = state * ALPHABET + (opcode & 0xff);
+                if (next[t] < 0) next[t] = states++;
+                state = next[t];
+            }
+            if (out[state] == null) out[state] = new IntList(2);
+            out[state].add(i);
+        }
+        // bfs so the failure target of a state is complete before the state itself
+        final var fail = new int[states];
+        final var queue = new int[states];
+        int head = 0, tail = 0;
+        for (var c = 0; c < ALPHABET; ++c) {
+            if (next[c] < 0) {
+                next[c] = 0;
+            } else {
+                queue[tail++] = next[c];
+            }
+        }
+        outputs = new int[states][];
+        outputs[0] = new int[0];
+        while (head < tail) {
+            final var state = queue[head++];
+            final var inherited = outputs[fail[state]];
+            if (out[state] == null) {
+                outputs[state] = inherited;
+            } else {
+                for (final var pattern : inherited) out[state].add(pattern);
+                outputs[state] = out[state].toArray();
+            }
+            for (var c = 0; c < ALPHABET; ++c) {
+                final var t = state * ALPHABET + c;
+                final var failNext = next[fail[state] * ALPHABET + c];
+                if (next[t] < 0) {
+                    next[t] = failNext;
+                } else {
+                    fail[next[t]] = failNext;
+                    queue[tail++] = next[t];
+                }
+            }
+        }
+        transitions = Arrays.copyOf(next, states * ALPHABET);
+    }
+
+    // add every pattern found in text to matched once; seen must be all false on entry and is reset on return
+    void search(@NonNull byte[] text, @NonNull boolean[] seen, @NonNull IntList matched) {
+        matched.clear();
+        var state = 0;
+        for (final var opcode : text) {
+            state = transitions[state * ALPHABET + (opcode & 0xff)];
+            for (final var pattern : outputs[state]) {
+                if (seen[pattern]) continue;
+                seen[pattern] = true;
+                matched.add(pattern);
+            }
+            if (matched.size() == patternCount) break;
+        }
+        for (var i = 0; i < matched.size(); ++i) {
+            seen[matched.get(i)] = false;
+        }
+    }
+}
+
+// a visited method body with its id arrays sorted once for all matchers
+final class MethodBody {
+    @NonNull
+    final DexIndex index;
+    final int method;
+    final int accessFlags;
+    @NonNull
+    final int[] referredStrings;
+    @NonNull
+    final IdTreeSetView invokedMethods;
+    @NonNull
+    final IdTreeSetView accessedFields;
+    @NonNull
+    final IdTreeSetView assignedFields;
+    @NonNull
+    final byte[] opcodes;
+
+    MethodBody(@NonNull DexIndex index, int method, int accessFlags, @NonNull int[] referredStrings, @NonNull int[] invokedMethods, @NonNull int[] accessedFields, @NonNull int[] assignedFields, @NonNull byte[] opcodes) {
+        this.index = index;
+        this.method = method;
+        this.accessFlags = accessFlags;
+        this.referredStrings = sorted(referredStrings);
+        this.invokedMethods = IdTreeSetView.ofSorted(sorted(invokedMethods));
+        this.accessedFields = IdTreeSetView.ofSorted(sorted(accessedFields));
+        this.assignedFields = IdTreeSetView.ofSorted(sorted(assignedFields));
+        this.opcodes = opcodes;
+    }
+
+    @NonNull
+    private static int[] sorted(@NonNull int[] ids) {
+        var copy = ids.clone();
+        Arrays.sort(copy);
+        return PostingSet.distinct(copy);
+    }
+}
+
+// a sorted id set, or the complement of one, so that `not` never has to enumerate every id
+final class PostingSet {
+    static final PostingSet EMPTY = new PostingSet(new int[0], false);
+    static final PostingSet ALL = new PostingSet(new int[0], true);
+
+    @NonNull
+    final int[] ids;
+    final boolean complement;
+
+    PostingSet(@NonNull int[] ids, boolean complement) {
+        this.ids = ids;
+        this.complement = complement;
+    }
+
+    @NonNull
+    PostingSet not() {
+        return new PostingSet(ids, !complement);
+    }
+
+    @NonNull
+    PostingSet and(@NonNull PostingSet other) {
+        if (!complement && !other.complement) return new PostingSet(intersect(ids, other.ids), false);
+        if (!complement) return new PostingSet(subtract(ids, other.ids), false);
+        if (!other.complement) return new PostingSet(subtract(other.ids, ids), false);
+        return new PostingSet(union(ids, other.ids), true);
+    }
+
+    @NonNull
+    PostingSet or(@NonNull PostingSet other) {
+        if (!complement && !other.complement) return new PostingSet(union(ids, other.ids), false);
+        if (!complement) return new PostingSet(subtract(other.ids, ids), true);
+        if (!other.complement) return new PostingSet(subtract(ids, other.ids), true);
+        return new PostingSet(intersect(ids, other.ids), true);
+    }
+
+    boolean contains(int id) {
+        return (Arrays.binarySearch(ids, id) >= 0) != complement;
+    }
+
+    // the ids of universe in this set
+    @NonNull
+    int[] materialize(@NonNull int[] universe) {
+        return complement ? subtract(universe, ids) : intersect(universe, ids);
+    }
+
+    @NonNull
+    static int[] distinct(@NonNull int[] sorted) {
+        if (sorted.length < 2) return sorted;
+        int p = 1;
+        for (var i = 1; i < sorted.length; ++i) {
+            if (sorted[i] != sorted[p - 1]) sorted[p++] = sorted[i];
+        }
+        return p == sorted.length ? sorted : Arrays.copyOf(sorted, p);
+    }
+
+    @NonNull
+    static int[] intersect(@NonNull int[] a, @NonNull int[] b) {
+        if (a.length > b.length) {
+            var t = a;
+            a = b;
+            b = t;
+        }
+        var res = new int[a.length];
+        int p = 0;
+        if (a.length * 16 < b.length) {
+            // skewed lists: binary search the short one into the long one
+            int from = 0;
+            for (var x : a) {
+                var i = Arrays.binarySearch(b, from, b.length, x);
+                if (i >= 0) {
+                    res[p++] = x;
+                    from = i + 1;
+                } else {
+                    from = -i - 1;
+                }
+                if (from >= b.length) break;
+            }
+        } else {
+            int i = 0, j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) i++;
+                else if (a[i] > b[j]) j++;
+                else {
+                    res[p++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return p == res.length ? res : Arrays.copyOf(res, p);
+    }
+
+    @NonNull
+    static int[] union(@NonNull int[] a, @NonNull int[] b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        var res = new int[a.length + b.length];
+        int p = 0, i = 0, j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) res[p++] = a[i++];
+            else if (a[i] > b[j]) res[p++] = b[j++];
+            else {
+                res[p++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        while (i < a.length) res[p++] = a[i++];
+        while (j < b.length) res[p++] = b[j++];
+        return p == res.length ? res : Arrays.copyOf(res, p);
+    }
+
+    @NonNull
+    static int[] subtract(@NonNull int[] a, @NonNull int[] b) {
+        if (a.length == 0 || b.length == 0) return a;
+        var res = new int[a.length];
+        int p = 0, j = 0;
+        for (var x : a) {
+            while (j < b.length && b[j] < x) j++;
+            if (j < b.length && b[j] == x) continue;
+            res[p++] = x;
+        }
+        return p == res.length ? res : Arrays.copyOf(res, p);
+    }
+}
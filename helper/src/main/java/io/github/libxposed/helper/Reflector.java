@@ -13,6 +13,10 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 @SuppressWarnings("unused")
 final class Reflector {
@@ -20,7 +24,12 @@ final class Reflector {
     private static final Map<Character, Class<?>> primitiveClassMap = Map.of('I', int.class, 'Z', boolean.class, 'F', float.class, 'J', long.class, 'S', short.class, 'B', byte.class, 'D', double.class, 'C', char.class, 'V', void.class);
     private static final WeakReference<?> EMPTY = new WeakReference<>(null);
     private final ClassLoader classLoader;
-    private final HashMap<String, WeakReference<Class<?>>> classCache = new HashMap<>();
+    // build-scoped name -> class resolution shared by every matcher path, failures included
+    private final ConcurrentHashMap<String, FutureTask<Class<?>>> classTable = new ConcurrentHashMap<>();
+    // build-scoped member snapshots per class, taken once however many matchers walk through it
+    private final ConcurrentHashMap<Class<?>, FutureTask<MemberSnapshot<Field>>> fieldTable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, FutureTask<MemberSnapshot<Method>>> methodTable = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Class<?>, FutureTask<MemberSnapshot<Constructor<?>>>> constructorTable = new ConcurrentHashMap<>();
     private final HashMap<MemberKey.Method, WeakReference<Method>> methodCache = new HashMap<>();
     private final HashMap<MemberKey.Field, WeakReference<Field>> fieldCache = new HashMap<>();
     private final HashMap<MemberKey.Constructor, WeakReference<Constructor<?>>> constructorCache = new HashMap<>();
@@ -49,29 +58,7 @@ final class Reflector {
             className = sb.toString();
         }
         try {
-            WeakReference<Class<?>> ref;
-            synchronized (classCache) {
-                ref = classCache.get(className);
-            }
-            if (ref == EMPTY) {
-                throw new ClassNotFoundException(className);
-            }
-            var clazz = ref != null ? ref.get() : null;
-            if (clazz == null) {
-                try {
-                    clazz = Class.forName(className, false, classLoader);
-                } catch (ClassNotFoundException e) {
-                    synchronized (classCache) {
-                        //noinspection unchecked
-                        classCache.put(className, (WeakReference<Class<?>>) EMPTY);
-                    }
-                    throw e;
-                }
-                synchronized (classCache) {
-                    classCache.put(className, new WeakReference<>(clazz));
-                }
-            }
-            return clazz;
+            return findClass(className);
         } catch (ClassNotFoundException e) {
             final int lastDot = className.lastIndexOf('.');
             if (lastDot > 0) {
@@ -85,6 +72,83 @@ final class Reflector {
         }
     }
 
+    // resolve a binary name at most once per build, concurrent callers wait for the first one
+    @NonNull
+    Class<?> findClass(@NonNull String className) throws ClassNotFoundException {
+        var task = classTable.get(className);
+        if (task == null) {
+            final var newTask = new FutureTask<Class<?>>(() -> Class.forName(className, false, classLoader));
+            task = classTable.putIfAbsent(className, newTask);
+            if (task == null) {
+                task = newTask;
+                newTask.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            final var cause = e.getCause();
+            if (cause instanceof ClassNotFoundException) throw new ClassNotFoundException(className, cause);
+            if (cause instanceof Error) throw (Error) cause;
+            throw new ClassNotFoundException(className, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClassNotFoundException(className, e);
+        }
+    }
+
+    // drop the resolutions of a finished build, so that the classes are not kept reachable by the builder
+    void clearClassTable() {
+        classTable.clear();
+    }
+
+    // likewise for the member snapshots, which hold on to the classes they were taken from
+    void clearMemberTables() {
+        fieldTable.clear();
+        methodTable.clear();
+        constructorTable.clear();
+    }
+
+    // the returned snapshots are shared and must not be modified
+    @NonNull
+    MemberSnapshot<Field> getFields(@NonNull Class<?> clazz) {
+        return memoize(fieldTable, clazz, () -> MemberSnapshot.ofFields(clazz));
+    }
+
+    @NonNull
+    MemberSnapshot<Method> getMethods(@NonNull Class<?> clazz) {
+        return memoize(methodTable, clazz, () -> MemberSnapshot.ofMethods(clazz));
+    }
+
+    @NonNull
+    MemberSnapshot<Constructor<?>> getConstructors(@NonNull Class<?> clazz) {
+        return memoize(constructorTable, clazz, () -> MemberSnapshot.ofConstructors(clazz));
+    }
+
+    @NonNull
+    private static <T> T memoize(@NonNull ConcurrentHashMap<Class<?>, FutureTask<T>> table, @NonNull Class<?> clazz, @NonNull Callable<T> compute) {
+        var task = table.get(clazz);
+        if (task == null) {
+            final var newTask = new FutureTask<>(compute);
+            task = table.putIfAbsent(clazz, newTask);
+            if (task == null) {
+                task = newTask;
+                newTask.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            final var cause = e.getCause();
+            if (cause instanceof Error) throw (Error) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
     @NonNull
     Field loadField(@NonNull String fieldString) throws ClassNotFoundException, NoSuchFieldException {
         Class<?> declaringClass;
@@ -0,0 +1,139 @@
+package io.github.libxposed.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ClassNameTableTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    // more names than one block, sharing long prefixes, with names outside of ascii; class names never contain nul
+    private static List<String> names() {
+        final var names = new ArrayList<String>();
+        for (var i = 0; i < 40; ++i) names.add(String.format("com.example.app.Class%02d", i));
+        names.add("com.example.app.Class05$Inner");
+        names.add("com.example.été.Summer");
+        names.add("com.example.😀.Emoji");
+        names.add("com.example.￿.Last");
+        names.add("android.app.Activity");
+        Collections.sort(names);
+        return names;
+    }
+
+    private static ClassNameTable build(List<String> names) {
+        final var builder = new ClassNameTable.Builder();
+        for (final var name : names) builder.add(name);
+        return builder.build();
+    }
+
+    private static List<String> toList(ClassNameTable table) {
+        final var list = new ArrayList<String>();
+        for (final var name : table) list.add(name);
+        return list;
+    }
+
+    private File source(String name, String content) throws IOException {
+        final var file = folder.newFile(name);
+        try (var out = new FileOutputStream(file)) {
+            out.write(content.getBytes());
+        }
+        return file;
+    }
+
+    @Test
+    public void testLookup() {
+        final var names = names();
+        final var table = build(names);
+        assertEquals(names.size(), table.size());
+        assertEquals(names, toList(table));
+        for (var i = 0; i < names.size(); ++i) {
+            assertEquals(names.get(i), table.get(i));
+            assertEquals(0, table.compare(i, names.get(i), false));
+            assertTrue(table.contains(names.get(i)));
+            assertEquals(i, table.lowerBound(names.get(i), 0));
+        }
+        assertFalse(table.contains("com.example.app.Class"));
+        assertFalse(table.contains("com.example.app.Class99"));
+
+        final int from = table.lowerBound("com.example.app.", 0);
+        final int to = table.upperBoundPrefix("com.example.app.", from);
+        assertEquals(41, to - from);
+        assertEquals("com.example.app.Class00", table.get(from));
+        assertEquals("com.example.app.Class39", table.get(to - 1));
+        assertEquals(toList(table.slice(from, to)), toList(table.subSet("com.example.app.", "com.example.app/")));
+    }
+
+    @Test
+    public void testBuilder() {
+        final var builder = new ClassNameTable.Builder();
+        builder.add("a.B");
+        builder.add("a.B");
+        builder.add("a.C");
+        assertThrows(IllegalArgumentException.class, () -> builder.add("a.A"));
+        assertEquals(Arrays.asList("a.B", "a.C"), toList(builder.build()));
+        assertTrue(new ClassNameTable.Builder().build().isEmpty());
+    }
+
+    @Test
+    public void testMerge() {
+        final var names = names();
+        final var even = new ArrayList<String>();
+        final var odd = new ArrayList<String>();
+        for (var i = 0; i < names.size(); ++i) (i % 2 == 0 ? even : odd).add(names.get(i));
+        odd.add(even.get(0));
+        Collections.sort(odd);
+        assertEquals(names, toList(build(even).merge(build(odd))));
+    }
+
+    @Test
+    public void testWriteAndMap() throws IOException {
+        final var names = names();
+        final var base = source("base.apk", "base");
+        final var split = source("split_config.apk", "split");
+        final var sources = Arrays.asList(base, split);
+        final var cache = new File(folder.getRoot(), "class_names");
+        assertNull(ClassNameTable.map(cache, sources));
+
+        build(names).write(cache, sources);
+        final var mapped = ClassNameTable.map(cache, sources);
+        assertNotNull(mapped);
+        assertEquals(names, toList(mapped));
+        assertTrue(mapped.contains("com.example.😀.Emoji"));
+
+        // the table is only valid for the very same sources
+        assertNull(ClassNameTable.map(cache, Collections.singletonList(base)));
+        assertNull(ClassNameTable.map(cache, Arrays.asList(split, base)));
+        try (var out = new FileOutputStream(split, true)) {
+            out.write('!');
+        }
+        assertNull(ClassNameTable.map(cache, sources));
+    }
+
+    @Test
+    public void testMapRejectsTruncatedFile() throws IOException {
+        final var sources = Collections.singletonList(source("base.apk", "base"));
+        final var cache = new File(folder.getRoot(), "class_names");
+        build(names()).write(cache, sources);
+        try (var in = new RandomAccessFile(cache, "rw")) {
+            in.setLength(in.length() - 1);
+        }
+        assertNull(ClassNameTable.map(cache, sources));
+    }
+}
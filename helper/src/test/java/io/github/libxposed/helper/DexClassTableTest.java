@@ -0,0 +1,153 @@
+package io.github.libxposed.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.libxposed.api.utils.DexParser;
+
+public class DexClassTableTest {
+    // in utf-16 order: nul is encoded in two bytes but still sorts first,
+    // and a surrogate pair sorts below U+FFFF although its code point is above
+    private static final List<String> strings = Arrays.asList(
+            "\u0000",
+            "La/B;",
+            "La/C;",
+            "Ljava/lang/Object;",
+            "abc",
+            "abcd",
+            "abd",
+            "été",
+            "中文",
+            "😀",
+            "￿"
+    );
+    private static final int typeB = 0;
+    private static final int typeC = 1;
+    private static final int typeObject = 2;
+
+    private static void putMutf8(ByteArrayOutputStream out, String string) {
+        out.write(string.length());
+        for (var i = 0; i < string.length(); ++i) {
+            final char c = string.charAt(i);
+            if (c != 0 && c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | c >> 6);
+                out.write(0x80 | c & 0x3f);
+            } else {
+                out.write(0xe0 | c >> 12);
+                out.write(0x80 | c >> 6 & 0x3f);
+                out.write(0x80 | c & 0x3f);
+            }
+        }
+        out.write(0);
+    }
+
+    // a dex with only the tables read by DexClassTable: strings, the types La/B;, La/C; and Ljava/lang/Object;,
+    // and one class_def, La/B; extending Ljava/lang/Object; and implementing La/C;
+    private static DexClassTable table() {
+        final int stringIdsOff = 0x70;
+        final int typeIdsOff = stringIdsOff + 4 * strings.size();
+        final int classDefsOff = typeIdsOff + 4 * 3;
+        final int interfacesOff = classDefsOff + 0x20;
+        final int dataOff = interfacesOff + 8;
+        final var data = new ByteArrayOutputStream();
+        final var stringOffs = new int[strings.size()];
+        for (var i = 0; i < strings.size(); ++i) {
+            stringOffs[i] = dataOff + data.size();
+            putMutf8(data, strings.get(i));
+        }
+        final var buffer = ByteBuffer.allocate(dataOff + data.size()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x38, strings.size());
+        buffer.putInt(0x3c, stringIdsOff);
+        buffer.putInt(0x40, 3);
+        buffer.putInt(0x44, typeIdsOff);
+        buffer.putInt(0x60, 1);
+        buffer.putInt(0x64, classDefsOff);
+        for (var i = 0; i < strings.size(); ++i) buffer.putInt(stringIdsOff + 4 * i, stringOffs[i]);
+        buffer.putInt(typeIdsOff, strings.indexOf("La/B;"));
+        buffer.putInt(typeIdsOff + 4, strings.indexOf("La/C;"));
+        buffer.putInt(typeIdsOff + 8, strings.indexOf("Ljava/lang/Object;"));
+        buffer.putInt(classDefsOff, typeB);
+        buffer.putInt(classDefsOff + 4, 0x11);
+        buffer.putInt(classDefsOff + 8, typeObject);
+        buffer.putInt(classDefsOff + 12, interfacesOff);
+        buffer.putInt(interfacesOff, 1);
+        buffer.putShort(interfacesOff + 4, (short) typeC);
+        buffer.position(dataOff);
+        buffer.put(data.toByteArray());
+        buffer.clear();
+        return new DexClassTable(buffer);
+    }
+
+    @Test
+    public void testStringsAreSorted() {
+        for (var i = 1; i < strings.size(); ++i) {
+            assertTrue(strings.get(i - 1).compareTo(strings.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void testCompareString() {
+        final var table = table();
+        assertEquals(strings.size(), table.getStringCount());
+        for (var i = 0; i < strings.size(); ++i) {
+            for (final var pattern : strings) {
+                final int expected = Integer.signum(strings.get(i).compareTo(pattern));
+                final var message = i + " " + pattern;
+                if (expected == 0) {
+                    assertEquals(message, 0, table.compareString(i, pattern, false));
+                } else {
+                    assertEquals(message, expected, Integer.signum(table.compareString(i, pattern, false)));
+                }
+            }
+        }
+        final int abcd = strings.indexOf("abcd");
+        assertEquals(0, table.compareString(abcd, "abc", true));
+        assertEquals(1, table.compareString(abcd, "abc", false));
+        assertEquals(-1, table.compareString(strings.indexOf("abc"), "abcd", true));
+        assertEquals(0, table.compareString(strings.indexOf("été"), "é", true));
+        assertEquals(0, table.compareString(strings.indexOf("😀"), "\ud83d", true));
+    }
+
+    @Test
+    public void testSearch() {
+        final var table = table();
+        for (var i = 0; i < strings.size(); ++i) {
+            assertEquals(i, table.findString(strings.get(i)));
+        }
+        assertEquals(DexParser.NO_INDEX, table.findString("ab"));
+        assertEquals(DexParser.NO_INDEX, table.findString("\ud83d"));
+        final int from = table.lowerBoundString("abc", 0);
+        assertEquals(strings.indexOf("abc"), from);
+        assertEquals(strings.indexOf("abd"), table.upperBoundPrefix("abc", from));
+        assertEquals(strings.indexOf("abc"), table.lowerBoundString("ab", 0));
+        assertEquals(strings.size(), table.lowerBoundString("￿￿", 0));
+    }
+
+    @Test
+    public void testClassDefs() {
+        final var table = table();
+        assertEquals(typeB, table.findType("La/B;"));
+        assertEquals(typeObject, table.findType("Ljava/lang/Object;"));
+        assertEquals(DexParser.NO_INDEX, table.findType("abc"));
+        assertEquals(DexParser.NO_INDEX, table.findType("La/D;"));
+        assertTrue(table.isDefined(typeB));
+        assertFalse(table.isDefined(typeObject));
+        assertEquals(0x11, table.getClassAccessFlags(typeB));
+        assertEquals(-1, table.getClassAccessFlags(typeC));
+        assertEquals(typeObject, table.getSuperClass(typeB));
+        assertArrayEquals(new int[]{typeC}, table.getInterfaces(typeB));
+        assertArrayEquals(new int[0], table.getInterfaces(typeObject));
+    }
+}
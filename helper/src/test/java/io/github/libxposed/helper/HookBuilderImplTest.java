@@ -0,0 +1,41 @@
+package io.github.libxposed.helper;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HookBuilderImplTest {
+    // matchers are only declared and observed here, nothing is loaded or matched
+    private static HookBuilderImpl builder() {
+        //noinspection ConstantConditions
+        return new HookBuilderImpl(null, null, "");
+    }
+
+    @Test
+    public void testEqualMatchersAreMerged() {
+        final var builder = builder();
+        builder.classes(m -> m.setName(builder.prefix("a.B"))).onMatch(classes -> {});
+        builder.classes(m -> m.setName(builder.prefix("a.B"))).onMatch(classes -> {});
+        builder.eliminateCommonMatchers();
+        assertEquals(1, builder.getRootMatcherCount());
+    }
+
+    @Test
+    public void testFirstPrefixIsNotMergedWithPrefix() {
+        final var builder = builder();
+        builder.classes(m -> m.setName(builder.prefix("a.B"))).onMatch(classes -> {});
+        builder.classes(m -> m.setName(builder.firstPrefix("a.B"))).onMatch(classes -> {});
+        builder.eliminateCommonMatchers();
+        assertEquals(2, builder.getRootMatcherCount());
+    }
+
+    @Test
+    public void testExactIsNotMergedWithPrefix() {
+        final var builder = builder();
+        builder.classes(m -> m.setName(builder.exact("a.B"))).onMatch(classes -> {});
+        builder.classes(m -> m.setName(builder.firstPrefix("a.B"))).onMatch(classes -> {});
+        builder.classes(m -> m.setName(builder.prefix("a.B"))).onMatch(classes -> {});
+        builder.eliminateCommonMatchers();
+        assertEquals(3, builder.getRootMatcherCount());
+    }
+}
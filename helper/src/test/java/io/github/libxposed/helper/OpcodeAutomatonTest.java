@@ -0,0 +1,71 @@
+package io.github.libxposed.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class OpcodeAutomatonTest {
+    private static int[] search(OpcodeAutomaton automaton, int patternCount, byte[] text) {
+        final var seen = new boolean[patternCount];
+        final var matched = new IntList();
+        automaton.search(text, seen, matched);
+        for (final var flag : seen) assertEquals(false, flag);
+        final var res = matched.toArray();
+        Arrays.sort(res);
+        return res;
+    }
+
+    private static boolean contains(byte[] text, byte[] pattern) {
+        outer:
+        for (var i = 0; i + pattern.length <= text.length; ++i) {
+            for (var j = 0; j < pattern.length; ++j) {
+                if (text[i + j] != pattern[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testOverlappingPatterns() {
+        // a pattern inside another one is only found through the failure links
+        final byte[][] patterns = {
+                {0x6e, 0x0c},
+                {0x12, 0x6e, 0x0c, 0x38},
+                {0x0c, 0x38},
+                {(byte) 0xff, 0x00},
+        };
+        final var automaton = new OpcodeAutomaton(patterns);
+        assertArrayEquals(new int[]{0, 1, 2}, search(automaton, patterns.length, new byte[]{0x12, 0x6e, 0x0c, 0x38}));
+        assertArrayEquals(new int[]{0, 2}, search(automaton, patterns.length, new byte[]{0x12, 0x00, 0x6e, 0x0c, 0x38}));
+        assertArrayEquals(new int[]{0}, search(automaton, patterns.length, new byte[]{0x6e, 0x0c, 0x6e, 0x0c}));
+        assertArrayEquals(new int[]{3}, search(automaton, patterns.length, new byte[]{0x00, (byte) 0xff, 0x00}));
+        assertArrayEquals(new int[0], search(automaton, patterns.length, new byte[]{0x0c, 0x6e, 0x38}));
+        assertArrayEquals(new int[0], search(automaton, patterns.length, new byte[0]));
+    }
+
+    @Test
+    public void testAgainstNaiveSearch() {
+        final var random = new Random(42);
+        for (var round = 0; round < 200; ++round) {
+            // a small alphabet makes partial matches and shared prefixes common
+            final var patterns = new byte[1 + random.nextInt(6)][];
+            for (var i = 0; i < patterns.length; ++i) {
+                patterns[i] = new byte[1 + random.nextInt(4)];
+                for (var j = 0; j < patterns[i].length; ++j) patterns[i][j] = (byte) random.nextInt(3);
+            }
+            final var text = new byte[random.nextInt(32)];
+            for (var j = 0; j < text.length; ++j) text[j] = (byte) random.nextInt(3);
+            final var expected = new IntList();
+            for (var i = 0; i < patterns.length; ++i) {
+                if (contains(text, patterns[i])) expected.add(i);
+            }
+            final var automaton = new OpcodeAutomaton(patterns);
+            assertArrayEquals(expected.toArray(), search(automaton, patterns.length, text));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.libxposed.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class PostingSetTest {
+    private static final int universeSize = 64;
+    private static final int[] universe = new int[universeSize];
+
+    static {
+        for (var i = 0; i < universeSize; ++i) universe[i] = i;
+    }
+
+    private static PostingSet random(Random random) {
+        final var ids = new IntList();
+        final int density = 1 + random.nextInt(8);
+        for (var i = 0; i < universeSize; ++i) {
+            if (random.nextInt(density) == 0) ids.add(i);
+        }
+        return new PostingSet(ids.toArray(), random.nextBoolean());
+    }
+
+    private static long bits(PostingSet set) {
+        var bits = 0L;
+        for (var i = 0; i < universeSize; ++i) {
+            if (set.contains(i)) bits |= 1L << i;
+        }
+        return bits;
+    }
+
+    @Test
+    public void testAlgebra() {
+        final var random = new Random(42);
+        for (var round = 0; round < 1000; ++round) {
+            final var a = random(random);
+            final var b = random(random);
+            assertEquals(~bits(a), bits(a.not()));
+            assertEquals(bits(a) & bits(b), bits(a.and(b)));
+            assertEquals(bits(a) | bits(b), bits(a.or(b)));
+            // de morgan, across the four combinations of complemented operands
+            assertEquals(bits(a.and(b).not()), bits(a.not().or(b.not())));
+            assertEquals(bits(a.or(b).not()), bits(a.not().and(b.not())));
+            assertEquals(bits(a), bits(a.not().not()));
+        }
+    }
+
+    @Test
+    public void testConstants() {
+        final var set = new PostingSet(new int[]{1, 5, 9}, false);
+        assertEquals(0L, bits(PostingSet.EMPTY));
+        assertEquals(-1L, bits(PostingSet.ALL));
+        assertEquals(bits(set), bits(set.and(PostingSet.ALL)));
+        assertEquals(0L, bits(set.and(PostingSet.EMPTY)));
+        assertEquals(-1L, bits(set.or(PostingSet.ALL)));
+        assertEquals(bits(set), bits(set.or(PostingSet.EMPTY)));
+        assertEquals(-1L, bits(set.or(set.not())));
+        assertEquals(0L, bits(set.and(set.not())));
+    }
+
+    @Test
+    public void testMaterialize() {
+        final var set = new PostingSet(new int[]{1, 5, 9}, false);
+        final int[] subset = {0, 1, 2, 9, 10};
+        assertArrayEquals(new int[]{1, 9}, set.materialize(subset));
+        assertArrayEquals(new int[]{0, 2, 10}, set.not().materialize(subset));
+        assertArrayEquals(universe, PostingSet.ALL.materialize(universe));
+    }
+
+    @Test
+    public void testSortedOperations() {
+        // skewed sizes take the binary search path of intersect
+        final var large = new int[100];
+        for (var i = 0; i < large.length; ++i) large[i] = 2 * i;
+        assertArrayEquals(new int[]{4, 198}, PostingSet.intersect(new int[]{3, 4, 198, 199}, large));
+        assertArrayEquals(new int[]{1, 2, 3, 5}, PostingSet.union(new int[]{1, 3}, new int[]{2, 3, 5}));
+        assertArrayEquals(new int[]{1}, PostingSet.subtract(new int[]{1, 3}, new int[]{2, 3, 5}));
+        assertArrayEquals(new int[]{1, 2, 3}, PostingSet.distinct(new int[]{1, 1, 2, 3, 3, 3}));
+    }
+}